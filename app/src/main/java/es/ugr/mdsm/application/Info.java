@@ -11,6 +11,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import es.ugr.mdsm.restDump.Util;
+import eu.faircode.netguard.UidCache;
 
 public class Info {
     private final static String TAG = "Application.Info";
@@ -31,17 +32,8 @@ public class Info {
     }
 
     public static String getNameForUid(Context context, int uid){
-        ApplicationInfo info = null;
-        PackageManager pm = context.getPackageManager();
-        String[] pkg = pm.getPackagesForUid(uid);
-        if (pkg != null && pkg.length > 0){
-            try {
-                info = pm.getApplicationInfo(pkg[0], 0);
-            } catch (PackageManager.NameNotFoundException ignored) {
-            }
-        }
-
-        return info==null ? null : Util.anonymizeApp(context, info.packageName);
+        String packageName = UidCache.get(uid, context).packageName;
+        return packageName==null ? null : Util.anonymizeApp(context, packageName);
 
     }
 
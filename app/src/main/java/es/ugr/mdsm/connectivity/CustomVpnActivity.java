@@ -26,6 +26,7 @@ import es.ugr.mdsm.amon.R;
 import eu.faircode.netguard.DatabaseHelper;
 import eu.faircode.netguard.Packet;
 import eu.faircode.netguard.ServiceSinkhole;
+import eu.faircode.netguard.UsageAccumulator;
 import eu.faircode.netguard.Util;
 
 
@@ -309,6 +310,11 @@ public class CustomVpnActivity extends AppCompatActivity {
         ServiceSinkhole.reload("changed tracking", this, false);
     }
 
+    // Traffic of an app, or of all apps for a negative uid, including usage not written to the database yet
+    public UsageAccumulator.Entry getUsage(int uid){
+        return DatabaseHelper.getInstance(this).getUsage(uid);
+    }
+
     public boolean isFlowCollected(){
         return prefs.getBoolean("collect_flow",false);
     }
@@ -336,6 +342,15 @@ public class CustomVpnActivity extends AppCompatActivity {
         ServiceSinkhole.reload("changed flow compaction", this, false);
     }
 
+    public boolean isFlowBinary(){
+        return prefs.getBoolean("binaryFlow",false);
+    }
+
+    // Upload flows in the compact binary format, read by DbDumper on every dump
+    public void binaryFlow(boolean enabled){
+        prefs.edit().putBoolean("binaryFlow", enabled).apply();
+    }
+
     public boolean isWifiWhitelisted(){
         return prefs.getBoolean("whitelist_wifi",false);
     }
@@ -3,34 +3,79 @@ package es.ugr.mdsm.connectivity;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.LinkAddress;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.os.Build;
 
 import androidx.annotation.RequiresApi;
 
 import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.util.List;
 
 public class Networking {
 
     private static final String TAG = "Connectivity.Networking";
 
+    // Source addresses of a network, immutable so it can be shared between threads
+    public static class Address {
+        public final long network;
+        public final String ipv4;
+        public final String ipv6;
+
+        Address(long network, String ipv4, String ipv6) {
+            this.network = network;
+            this.ipv4 = ipv4;
+            this.ipv6 = ipv6;
+        }
+
+        // Source address matching the family of the destination
+        public String getSource(String daddr) {
+            if (daddr != null && daddr.indexOf(':') >= 0 && ipv6 != null)
+                return ipv6;
+            return ipv4;
+        }
+
+        @Override
+        public String toString() {
+            return "network " + network + " ipv4 " + ipv4 + " ipv6 " + ipv6;
+        }
+    }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     public static String getNetworkAddress(Context context){
+        Address address = getActiveAddress(context);
+        return address == null ? null : address.ipv4;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static Address getActiveAddress(Context context){
         ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         Network network = manager.getActiveNetwork();
         if (network != null){
-            List<LinkAddress> linkAddresses = manager.getLinkProperties(network).getLinkAddresses();
-            for (LinkAddress linkAddress: linkAddresses){
-                if(linkAddress.getAddress() instanceof Inet4Address){
-                    return linkAddress.getAddress().getHostAddress();
-                }
+            LinkProperties linkProperties = manager.getLinkProperties(network);
+            if (linkProperties != null){
+                return getAddress(network, linkProperties);
             }
         }
         return null;
     }
 
-
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static Address getAddress(Network network, LinkProperties linkProperties){
+        String ipv4 = null;
+        String ipv6 = null;
+        List<LinkAddress> linkAddresses = linkProperties.getLinkAddresses();
+        for (LinkAddress linkAddress: linkAddresses){
+            InetAddress address = linkAddress.getAddress();
+            if(ipv4 == null && address instanceof Inet4Address){
+                ipv4 = address.getHostAddress();
+            }else if(ipv6 == null && address instanceof Inet6Address && !address.isLinkLocalAddress()){
+                ipv6 = address.getHostAddress();
+            }
+        }
+        return new Address(network.getNetworkHandle(), ipv4, ipv6);
+    }
 
 }
@@ -20,6 +20,13 @@ public class Usage {
         return batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
     }
 
+    public static boolean isCharging(Context context){
+        IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        Intent batteryStatus = context.registerReceiver(null, ifilter);
+
+        return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
     // Return ram value in MB
     public static long ramUsage(Context context){
         ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
@@ -1,5 +1,6 @@
 package es.ugr.mdsm.restDump;
 import io.reactivex.Observable;
+import okhttp3.RequestBody;
 import retrofit2.Response;
 import retrofit2.http.Body;
 import retrofit2.http.POST;
@@ -16,6 +17,13 @@ public interface Api {
     @POST("compactFlow")
     Observable<Response<Void>> postCompactFlow(@Body Flow flow);
 
+    // Same endpoints, the body is streamed by FlowJsonBody or encoded by FlowCodec and announced by its content type
+    @POST("flow")
+    Observable<Response<Void>> postFlowBody(@Body RequestBody body);
+
+    @POST("compactFlow")
+    Observable<Response<Void>> postCompactFlowBody(@Body RequestBody body);
+
     @POST("app")
     Observable<Response<Void>> postApp(@Body App app);
 
@@ -8,16 +8,18 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.google.gson.Gson;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import es.ugr.mdsm.application.Info;
 import es.ugr.mdsm.application.Permission;
@@ -31,11 +33,15 @@ import es.ugr.mdsm.connectivity.Vpn;
 import es.ugr.mdsm.ecosystem.Configuration;
 import es.ugr.mdsm.hardware.PhysicalAccess;
 import es.ugr.mdsm.hardware.Usage;
+import eu.faircode.netguard.FlowJournal;
+import eu.faircode.netguard.FlowRing;
 import eu.faircode.netguard.ServiceSinkhole;
 import io.reactivex.Observer;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory;
@@ -44,13 +50,19 @@ import retrofit2.converter.gson.GsonConverterFactory;
 public class DbDumper {
     private static final String TAG = "MDSM.DbDumper";
     private static final int MINIMAL_AMOUNT_FLOWS = 20;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
     public static final long DEFAULT_INTERVAL = 60*1000; // in ms
 
+    // Shared by the Retrofit converter and the streamed flow bodies
+    private static final Gson GSON = new Gson();
+
     private Context mContext;
     private HandlerThread handlerThread;
     private Looper looper;
     private Handler restHandler;
     private Api api;
+    private volatile boolean binaryAccepted = true;
+    private final FlowScheduler flowScheduler = new FlowScheduler(DEFAULT_INTERVAL, MINIMAL_AMOUNT_FLOWS);
     // private DatabaseHelper dh;
 
     private Runnable flowPush;
@@ -76,7 +88,7 @@ public class DbDumper {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(Api.ENDPOINT)
-                .addConverterFactory(GsonConverterFactory.create())
+                .addConverterFactory(GsonConverterFactory.create(GSON))
                 .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
                 .build();
 
@@ -116,14 +128,20 @@ public class DbDumper {
         restHandler.post(flowPush);
     }
 
-    // Periodic call to flowPush
+    // Adaptive call to flowPush, the interval is only the starting point of the scheduler
     public void dumpFlowInfo(final long interval){
         restHandler.removeCallbacks(flowPushPeriodic);
+        flowScheduler.setInterval(interval);
         flowPushPeriodic = new Runnable() {
             @Override
             public void run() {
                 flowDump();
-                restHandler.postDelayed(this, interval);
+
+                FlowRing flowRing = ServiceSinkhole.getFlowRing();
+                long delay = flowScheduler.nextDelay(flowRing.size(), flowRing.capacity(),
+                        eu.faircode.netguard.Util.isMeteredNetwork(mContext), Usage.isCharging(mContext));
+                Log.d(TAG, "Next flow dump in " + (delay / 1000) + " s, scheduler " + flowScheduler);
+                restHandler.postDelayed(this, delay);
             }
         };
         restHandler.post(flowPushPeriodic);
@@ -246,9 +264,6 @@ public class DbDumper {
 
     public void flowDump(){
         final long now = Calendar.getInstance().getTimeInMillis();
-        List<Flow_> flows = new ArrayList<>();
-        Flow flow;
-        Gson gson = new Gson();
 
         /*
         // Read flows since now
@@ -283,104 +298,132 @@ public class DbDumper {
             }
         }
         */
-        final LinkedBlockingQueue<eu.faircode.netguard.Flow> flowQueue = ServiceSinkhole.getQueue();
-        final ArrayList<eu.faircode.netguard.Flow> tempFlows = new ArrayList<>();
-        if (flowQueue.isEmpty()){
-            Log.d(TAG, "There's no flow entry to send");
-            return;
-        } else if(flowQueue.size()<= MINIMAL_AMOUNT_FLOWS){
-            Log.d(TAG, "Not enough flows");
-            return;
-        }else {
-            Log.d(TAG, "Dumping "+flowQueue.size()+" flows");
-            flowQueue.drainTo(tempFlows);
-        }
+        final FlowRing flowRing = ServiceSinkhole.getFlowRing();
+        final FlowJournal journal = FlowJournal.getInstance(mContext);
+
+        long start = SystemClock.elapsedRealtime();
+        flowScheduler.sample(flowRing.getOffered(), start);
 
-        for (eu.faircode.netguard.Flow f:
-             tempFlows) {
-            flows.add(new Flow_(f));
+        // Spilled flows are always worth an upload
+        int pending = flowRing.size();
+        if (!flowScheduler.shouldUpload(journal.isEmpty() ? pending : Integer.MAX_VALUE, start)){
+            Log.d(TAG, "Not uploading " + pending + " flows, scheduler " + flowScheduler);
+            return;
         }
 
-        flow = new Flow(getFormattedMac(), flows);
+        // Spilled flows go first, the ring is spilled as well when it fills up
+        int size = flowScheduler.getBatchSize();
+        final FlowRing.Batch spilled = journal.read(size);
+        final boolean replay = (spilled != null);
+        final FlowRing.Batch batch;
+        if (replay){
+            batch = spilled;
+            Log.d(TAG, "Replaying " + batch.size + " flows, journal " + journal);
+        }else {
+            if (pending == 0){
+                Log.d(TAG, "There's no flow entry to send");
+                return;
+            }
 
-        Log.d(TAG, gson.toJson(flow));
+            // Records beyond the batch size and records offered meanwhile wait for the next dump
+            batch = new FlowRing.Batch(Math.min(pending, size));
+            flowRing.drainTo(batch);
+            Log.d(TAG, "Dumping " + batch.size + " flows, ring " + flowRing);
+        }
+        flowScheduler.begin(start);
 
+        SharedPreferences vpn = mContext.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         boolean compact = prefs.getBoolean("compactFlow", false);
+        boolean binary = binaryAccepted && vpn.getBoolean("binaryFlow", false);
+
+        // Serialized while the request is sent, straight from the drained batch
+        RequestBody body;
+        if (binary) {
+            long encodeStart = SystemClock.elapsedRealtime();
+            byte[] encoded = FlowCodec.encode(getFormattedMac(), batch);
+            Log.d(TAG, "Encoded " + batch.size + " flows into " + encoded.length + " bytes in " +
+                    (SystemClock.elapsedRealtime() - encodeStart) + " ms");
+            body = RequestBody.create(MediaType.parse(FlowCodec.CONTENT_TYPE), encoded);
+        } else {
+            FlowJsonBody json = new FlowJsonBody(GSON, getFormattedMac(), batch);
+            if (Log.isLoggable(TAG, Log.VERBOSE))
+                try {
+                    StringWriter writer = new StringWriter();
+                    json.write(writer);
+                    Log.v(TAG, writer.toString());
+                } catch (IOException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+            body = json;
+        }
 
-        // Post data
-        if(compact) {
-            api.postCompactFlow(flow)
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(new Observer<Response<Void>>() {
-                        @Override
-                        public void onSubscribe(Disposable d) {
+        postFlows(body, compact, binary, batch, journal, replay);
+    }
 
-                        }
+    private void postFlows(RequestBody body, boolean compact, final boolean binary,
+                           final FlowRing.Batch batch, final FlowJournal journal, final boolean replay){
+        final String kind = (binary ? "binary " : "") + (compact ? "compact flows" : "flows");
+        // Observed off the main thread, the outcome is written to the journal, which syncs to disk
+        (compact ? api.postCompactFlowBody(body) : api.postFlowBody(body))
+                .subscribeOn(Schedulers.io())
+                .observeOn(Schedulers.io())
+                .subscribe(new Observer<Response<Void>>() {
+                    @Override
+                    public void onSubscribe(Disposable d) {
 
-                        @Override
-                        public void onNext(Response response) {
-                            if (response.isSuccessful()) {
-                                Log.i(TAG, "Successful compact flows POST");
-                                // Remove everything
-                                // dh.safeCleanupFlow(now);
-                                // Remove only finished flows
-                                // dh.cleanupFinishedFlow(now);
+                    }
 
+                    @Override
+                    public void onNext(Response response) {
+                        if (response.isSuccessful()) {
+                            Log.i(TAG, "Successful " + kind + " POST");
+                            flowScheduler.delivered(SystemClock.elapsedRealtime());
+                            delivered(journal, replay);
+                            // Remove everything
+                            // dh.safeCleanupFlow(now);
+                            // Remove only finished flows
+                            // dh.cleanupFinishedFlow(now);
+                        } else {
+                            if (binary && response.code() == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                                // The server does not know the format, use JSON from now on
+                                Log.w(TAG, "Binary flows not accepted, falling back to JSON");
+                                binaryAccepted = false;
                             } else {
-                                Log.w(TAG, "Failed to POST compact flows");
-                                flowQueue.addAll(tempFlows);
+                                Log.w(TAG, "Failed to POST " + kind);
                             }
+                            flowScheduler.failed(SystemClock.elapsedRealtime());
+                            failed(journal, batch, replay);
                         }
+                    }
 
-                        @Override
-                        public void onError(Throwable e) {
-                            Log.e(TAG, "Error in compact flows POST", e);
-                        }
-
-                        @Override
-                        public void onComplete() {
-
-                        }
-                    });
-        }else {
-            api.postFlow(flow)
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(new Observer<Response<Void>>() {
-                        @Override
-                        public void onSubscribe(Disposable d) {
-
-                        }
-
-                        @Override
-                        public void onNext(Response response) {
-                            if (response.isSuccessful()) {
-                                Log.i(TAG, "Successful flows POST");
-                                // Remove everything
-                                // dh.safeCleanupFlow(now);
-                                // Remove only finished flows
-                                // dh.cleanupFinishedFlow(now);
-
-
-                            } else {
-                                Log.w(TAG, "Failed to POST flows");
-                                flowQueue.addAll(tempFlows);
-                            }
+                    @Override
+                    public void onError(Throwable e) {
+                        Log.e(TAG, "Error in " + kind + " POST", e);
+                        flowScheduler.failed(SystemClock.elapsedRealtime());
+                        failed(journal, batch, replay);
+                    }
 
-                        }
+                    @Override
+                    public void onComplete() {
 
-                        @Override
-                        public void onError(Throwable e) {
-                            Log.e(TAG, "Error in flows POST", e);
-                        }
+                    }
+                });
+    }
 
-                        @Override
-                        public void onComplete() {
+    private void delivered(FlowJournal journal, boolean replay){
+        if (replay)
+            journal.commit();
+    }
 
-                        }
-                    });
+    // Failed flows are kept in the journal instead of competing with new flows for the ring
+    private void failed(FlowJournal journal, FlowRing.Batch batch, boolean replay){
+        if (replay) {
+            journal.abort();
+        } else {
+            int written = journal.append(batch);
+            if (written < batch.size)
+                Log.w(TAG, "Dropped " + (batch.size - written) + " flows, journal " + journal);
         }
     }
 
@@ -0,0 +1,288 @@
+package es.ugr.mdsm.restDump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import eu.faircode.netguard.FlowRing;
+
+// Compact binary encoding of a flow batch, the binary counterpart of Flow/Flow_
+//
+// Body: magic "AMF", version, then the deflated payload:
+//   varint count, string mac
+//   dictionary: varint size, strings (package names and addresses), index 0 means null
+//   one column per field: time (zigzag delta), duration, protocol, saddr (dictionary),
+//   sport, daddr (dictionary), dport, sent, received, sent packets, received packets,
+//   tcp flags, tos, flags (bit 0 new flow, bit 1 finished), network, package name (dictionary)
+// Integers are unsigned LEB128 varints, strings are a varint length followed by UTF-8
+public class FlowCodec {
+    public static final String CONTENT_TYPE = "application/x-mdsm-flow";
+
+    private static final byte[] MAGIC = {'A', 'M', 'F'};
+    private static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static byte[] encode(String mac, FlowRing.Batch batch) {
+        Output out = new Output(batch.size * 24 + 256);
+        int n = batch.size;
+
+        out.varint(n);
+        out.string(mac);
+
+        // Dictionary
+        Map<String, Integer> index = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] pkg = new int[n];
+        int[] saddr = new int[n];
+        int[] daddr = new int[n];
+        for (int i = 0; i < n; i++) {
+            pkg[i] = lookup(batch.packageName[i], index, dictionary);
+            saddr[i] = lookup(batch.saddr[i], index, dictionary);
+            daddr[i] = lookup(batch.daddr[i], index, dictionary);
+        }
+        out.varint(dictionary.size());
+        for (String value : dictionary)
+            out.string(value);
+
+        // Columns
+        long last = 0;
+        for (int i = 0; i < n; i++) {
+            out.zigzag(batch.time[i] - last);
+            last = batch.time[i];
+        }
+        for (int i = 0; i < n; i++)
+            out.varint(batch.duration[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.protocol[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(saddr[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.sport[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(daddr[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.dport[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.sent[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.received[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.sentPackets[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.receivedPackets[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.tcpFlags[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(batch.tos[i]);
+        for (int i = 0; i < n; i++)
+            out.write((batch.isNewFlow(i) ? 1 : 0) | (batch.isFinished(i) ? 2 : 0));
+        for (int i = 0; i < n; i++)
+            out.zigzag(batch.network[i]);
+        for (int i = 0; i < n; i++)
+            out.varint(pkg[i]);
+
+        // Whole body compression
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(out.buffer(), 0, out.size());
+            deflater.finish();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(out.size() / 2 + 64);
+            body.write(MAGIC, 0, MAGIC.length);
+            body.write(VERSION);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                body.write(chunk, 0, count);
+            }
+            return body.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Inverse of encode, mainly to verify the format
+    public static FlowRing.Batch decode(byte[] data, String[] mac) throws IOException {
+        if (data.length < MAGIC.length + 1 ||
+                data[0] != MAGIC[0] || data[1] != MAGIC[1] || data[2] != MAGIC[2])
+            throw new IOException("Invalid magic");
+        if (data[3] != VERSION)
+            throw new IOException("Unsupported version " + data[3]);
+
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(data.length * 4);
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated body");
+                payload.write(chunk, 0, count);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+
+        Input in = new Input(payload.toByteArray());
+        int n = (int) in.varint();
+        String m = in.string();
+        if (mac != null && mac.length > 0)
+            mac[0] = m;
+
+        int size = (int) in.varint();
+        String[] dictionary = new String[size + 1];
+        for (int i = 1; i <= size; i++)
+            dictionary[i] = in.string();
+
+        FlowRing.Batch batch = new FlowRing.Batch(n);
+        long last = 0;
+        for (int i = 0; i < n; i++) {
+            last += in.zigzag();
+            batch.time[i] = last;
+        }
+        for (int i = 0; i < n; i++)
+            batch.duration[i] = in.varint();
+        for (int i = 0; i < n; i++)
+            batch.protocol[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.saddr[i] = dictionary[(int) in.varint()];
+        for (int i = 0; i < n; i++)
+            batch.sport[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.daddr[i] = dictionary[(int) in.varint()];
+        for (int i = 0; i < n; i++)
+            batch.dport[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.sent[i] = in.varint();
+        for (int i = 0; i < n; i++)
+            batch.received[i] = in.varint();
+        for (int i = 0; i < n; i++)
+            batch.sentPackets[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.receivedPackets[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.tcpFlags[i] = (int) in.varint();
+        for (int i = 0; i < n; i++)
+            batch.tos[i] = (int) in.varint();
+        for (int i = 0; i < n; i++) {
+            int flags = in.read();
+            batch.setFlags(i, (flags & 1) != 0, (flags & 2) != 0);
+        }
+        for (int i = 0; i < n; i++)
+            batch.network[i] = in.zigzag();
+        for (int i = 0; i < n; i++)
+            batch.packageName[i] = dictionary[(int) in.varint()];
+        batch.size = n;
+        return batch;
+    }
+
+    private static int lookup(String value, Map<String, Integer> index, List<String> dictionary) {
+        if (value == null)
+            return 0;
+        Integer i = index.get(value);
+        if (i == null) {
+            dictionary.add(value);
+            i = dictionary.size();
+            index.put(value, i);
+        }
+        return i;
+    }
+
+    private static class Output {
+        private byte[] buffer;
+        private int size = 0;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void write(int b) {
+            if (size == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, size);
+                buffer = grown;
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void string(String value) {
+            byte[] bytes = (value == null ? new byte[0] : value.getBytes(UTF8));
+            varint(bytes.length);
+            for (byte b : bytes)
+                write(b);
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private static class Input {
+        private final byte[] buffer;
+        private int position = 0;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int read() throws IOException {
+            if (position >= buffer.length)
+                throw new IOException("Unexpected end of body");
+            return buffer[position++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+                shift += 7;
+                if (shift > 63)
+                    throw new IOException("Invalid varint");
+            }
+        }
+
+        long zigzag() throws IOException {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String string() throws IOException {
+            int length = (int) varint();
+            if (length < 0 || position + length > buffer.length)
+                throw new IOException("Invalid string");
+            String value = new String(buffer, position, length, UTF8);
+            position += length;
+            return value;
+        }
+    }
+}
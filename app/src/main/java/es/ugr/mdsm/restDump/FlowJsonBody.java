@@ -0,0 +1,80 @@
+package es.ugr.mdsm.restDump;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import eu.faircode.netguard.FlowRing;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+// JSON body of a flow batch, written straight from the columns while the request is sent
+// The output is the same as serializing Flow/Flow_, without building the object graph first
+public class FlowJsonBody extends RequestBody {
+    private static final MediaType CONTENT_TYPE = MediaType.parse("application/json; charset=UTF-8");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Gson gson;
+    private final String mac;
+    private final FlowRing.Batch batch;
+
+    public FlowJsonBody(Gson gson, String mac, FlowRing.Batch batch) {
+        this.gson = gson;
+        this.mac = mac;
+        this.batch = batch;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return CONTENT_TYPE;
+    }
+
+    // The body can be written again when the request is retried, the batch is not changed
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(sink.outputStream(), UTF8), 8192);
+        write(writer);
+    }
+
+    public void write(Writer writer) throws IOException {
+        JsonWriter json = gson.newJsonWriter(writer);
+        json.beginObject();
+        json.name("mac").value(mac);
+        json.name("flows").beginArray();
+        for (int i = 0; i < batch.size; i++) {
+            json.beginObject();
+            // Gson leaves out null fields
+            if (batch.packageName[i] != null)
+                json.name("packageName").value(batch.packageName[i]);
+            json.name("time").value(batch.time[i]);
+            json.name("duration").value(batch.duration[i]);
+            json.name("protocol").value(batch.protocol[i]);
+            if (batch.saddr[i] != null)
+                json.name("saddr").value(batch.saddr[i]);
+            json.name("sport").value(batch.sport[i]);
+            if (batch.daddr[i] != null)
+                json.name("daddr").value(batch.daddr[i]);
+            json.name("dport").value(batch.dport[i]);
+            json.name("sentBytes").value(batch.sent[i]);
+            json.name("receivedBytes").value(batch.received[i]);
+            json.name("sentPackets").value(batch.sentPackets[i]);
+            json.name("receivedPackets").value(batch.receivedPackets[i]);
+            json.name("tcpFlags").value(batch.tcpFlags[i]);
+            json.name("ToS").value(batch.tos[i]);
+            json.name("newFlow").value(batch.isNewFlow(i));
+            json.name("finished").value(batch.isFinished(i));
+            if (batch.network[i] != 0)
+                json.name("network").value(batch.network[i]);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,129 @@
+package es.ugr.mdsm.restDump;
+
+// Decides when the next flow dump runs and how many flows it uploads
+// The batch size grows additively after each delivered upload and is halved after a failure or a slow upload,
+// the delay follows the rate the ring fills up and is stretched on metered networks while on battery
+// Times are in milliseconds on the caller's clock, methods are synchronized because results arrive on another thread
+public class FlowScheduler {
+    private static final long MIN_INTERVAL = 15 * 1000L; // milliseconds
+    private static final long MAX_INTERVAL = 15 * 60 * 1000L; // milliseconds
+    private static final int MIN_BATCH = 100;
+    private static final int MAX_BATCH = 4000;
+    private static final int BATCH_STEP = 100;
+    private static final long SLOW_UPLOAD = 10 * 1000L; // milliseconds
+    private static final float RING_TARGET = 0.5f; // part of the ring allowed to fill between dumps
+    private static final float WEIGHT = 0.3f; // of the newest sample in the moving averages
+
+    private final int minimum;
+    private long interval;
+
+    private int batchSize = 1000;
+    private int failures = 0;
+
+    private float fillRate = -1; // flows per second
+    private long lastOffered = -1;
+    private long lastSample = 0;
+
+    private long latency = 0;
+    private long lastUpload = 0;
+    private long started = 0;
+    private boolean inFlight = false;
+
+    public FlowScheduler(long interval, int minimum) {
+        this.interval = interval;
+        this.minimum = minimum;
+    }
+
+    // Base interval, used until the fill rate is known
+    public synchronized void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    // Total number of flows offered to the ring so far
+    public synchronized void sample(long offered, long now) {
+        if (lastOffered >= 0 && now > lastSample) {
+            float rate = Math.max(0, offered - lastOffered) * 1000f / (now - lastSample);
+            // Follow bursts at once, decay slowly when traffic calms down
+            fillRate = (rate > fillRate ? rate : WEIGHT * rate + (1 - WEIGHT) * fillRate);
+        } else if (lastOffered < 0)
+            lastUpload = now;
+        lastOffered = offered;
+        lastSample = now;
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    // Small batches wait for more flows, unless they have been waiting for the longest interval
+    public synchronized boolean shouldUpload(int pending, long now) {
+        if (inFlight) {
+            if (now - started < MAX_INTERVAL)
+                return false;
+            inFlight = false; // Result lost
+        }
+        if (pending == 0)
+            return false;
+        return (pending > minimum || now - lastUpload >= MAX_INTERVAL);
+    }
+
+    public synchronized void begin(long now) {
+        inFlight = true;
+        started = now;
+    }
+
+    public synchronized void delivered(long now) {
+        long elapsed = now - started;
+        latency = (latency == 0 ? elapsed : (long) (WEIGHT * elapsed + (1 - WEIGHT) * latency));
+        inFlight = false;
+        lastUpload = now;
+        failures = 0;
+
+        if (elapsed > SLOW_UPLOAD)
+            batchSize = Math.max(MIN_BATCH, batchSize / 2);
+        else
+            batchSize = Math.min(MAX_BATCH, batchSize + BATCH_STEP);
+    }
+
+    public synchronized void failed(long now) {
+        inFlight = false;
+        lastUpload = now;
+        failures++;
+        batchSize = Math.max(MIN_BATCH, batchSize / 2);
+    }
+
+    public synchronized long nextDelay(int pending, int capacity, boolean metered, boolean charging) {
+        // Batch more on a metered network while on battery, the radio is expensive to wake
+        long min = MIN_INTERVAL;
+        long max = MAX_INTERVAL;
+        if (metered && !charging)
+            min *= 4;
+        else if (!metered && charging)
+            max /= 3;
+
+        long delay;
+        int target = Math.min(batchSize, (int) (capacity * RING_TARGET));
+        if (fillRate < 0)
+            delay = interval;
+        else if (pending >= target)
+            delay = min;
+        else if (fillRate == 0)
+            delay = max;
+        else
+            delay = (long) ((target - pending) * 1000f / fillRate);
+
+        // Exponential backoff while the server is failing
+        if (failures > 0)
+            delay = Math.max(delay, interval << Math.min(failures, 6));
+
+        return Math.max(min, Math.min(max, delay));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batch " + batchSize +
+                " rate " + String.format("%.1f", Math.max(0, fillRate)) + "/s" +
+                " latency " + latency + " ms" +
+                " failures " + failures;
+    }
+}
@@ -53,6 +53,9 @@ public class Flow_ {
     @SerializedName("finished")
     @Expose
     private Boolean finished;
+    @SerializedName("network")
+    @Expose
+    private Long network;
 
     /**
      * No args constructor for use in serialization
@@ -118,6 +121,7 @@ public class Flow_ {
         this.toS = flow.Tos;
         this.newFlow = flow.NewFlow;
         this.finished = flow.Finished;
+        this.network = flow.Network == 0 ? null : flow.Network;
     }
 
     public String getPackageName() {
@@ -248,6 +252,14 @@ public class Flow_ {
         this.finished = finished;
     }
 
+    public Long getNetwork() {
+        return network;
+    }
+
+    public void setNetwork(Long network) {
+        this.network = network;
+    }
+
     @Override
     public String toString() {
         return "Flow_{" +
@@ -267,6 +279,7 @@ public class Flow_ {
                 ", toS=" + toS +
                 ", newFlow=" + newFlow +
                 ", finished=" + finished +
+                ", network=" + network +
                 '}';
     }
 }
\ No newline at end of file
@@ -846,4 +846,15 @@ public class ActivityMain extends AppCompatActivity {
         prefs.edit().putBoolean("compactFlow", enabled).apply();
         ServiceSinkhole.reload("changed flow compaction", this, false);
     }
+
+    public boolean isFlowBinary(){
+        SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
+        return prefs.getBoolean("binaryFlow",false);
+    }
+
+    // Upload flows in the compact binary format, read by DbDumper on every dump
+    public void binaryFlow(boolean enabled){
+        SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
+        prefs.edit().putBoolean("binaryFlow", enabled).apply();
+    }
 }
@@ -0,0 +1,172 @@
+package eu.faircode.netguard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Coalesces the changes of a table within a window into one notification
+// The first change of a table schedules the notification, later changes within the window are added to it,
+// so listeners are notified at most once per window per table however fast rows are written
+public class ChangeBus {
+    private static final String TAG = "NetGuard.ChangeBus";
+
+    public static final int LOG = 0;
+    public static final int ACCESS = 1;
+    public static final int FORWARD = 2;
+    public static final int FLOW = 3;
+    private static final int TABLES = 4;
+
+    public static final long DEFAULT_WINDOW = 1000; // milliseconds
+
+    // Beyond this number of uids a change is reported as affecting all uids
+    private static final int MAX_UIDS = 64;
+
+    private final Handler handler;
+    private final List<List<Listener>> listeners;
+    private final Change[] pending = new Change[TABLES];
+    private volatile long window = DEFAULT_WINDOW;
+
+    public ChangeBus(Looper looper) {
+        handler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                dispatch(msg.what);
+            }
+        };
+
+        listeners = new ArrayList<>();
+        for (int table = 0; table < TABLES; table++)
+            listeners.add(new CopyOnWriteArrayList<Listener>());
+    }
+
+    public void setWindow(long window) {
+        this.window = Math.max(0, window);
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public void addListener(int table, Listener listener) {
+        listeners.get(table).add(listener);
+    }
+
+    public void removeListener(int table, Listener listener) {
+        listeners.get(table).remove(listener);
+    }
+
+    // Rows of one uid changed, a negative uid means any uid
+    public void post(int table, int rows, int uid) {
+        synchronized (this) {
+            Change change = pending(table);
+            change.add(rows);
+            change.addUid(uid);
+        }
+    }
+
+    // Rows of a number of uids changed
+    public void post(int table, int rows, Collection<Integer> uids) {
+        synchronized (this) {
+            Change change = pending(table);
+            change.add(rows);
+            for (Integer uid : uids)
+                change.addUid(uid);
+        }
+    }
+
+    // Create the pending change of a table and schedule its notification, to be called while synchronized
+    private Change pending(int table) {
+        Change change = pending[table];
+        if (change == null) {
+            change = new Change(table);
+            pending[table] = change;
+
+            Message msg = handler.obtainMessage();
+            msg.what = table;
+            handler.sendMessageDelayed(msg, window);
+        }
+        return change;
+    }
+
+    private void dispatch(int table) {
+        Change change;
+        synchronized (this) {
+            change = pending[table];
+            pending[table] = null;
+        }
+        if (change == null)
+            return;
+
+        change.notified = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Notify " + change);
+
+        for (Listener listener : listeners.get(table))
+            try {
+                listener.onChanged(change);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    // Summary of the changes of a table within a window
+    public static class Change {
+        public final int table;
+        public final long first; // elapsed realtime
+        public long notified;
+        public int writes = 0;
+        public int rows = 0;
+        public boolean all = false; // of any uid, listeners should reload everything
+        private final Set<Integer> uids = new HashSet<>();
+
+        Change(int table) {
+            this.table = table;
+            this.first = SystemClock.elapsedRealtime();
+        }
+
+        void add(int rows) {
+            this.writes++;
+            this.rows += rows;
+        }
+
+        void addUid(int uid) {
+            if (all)
+                return;
+            if (uid < 0 || (uids.size() >= MAX_UIDS && !uids.contains(uid))) {
+                all = true;
+                uids.clear();
+            } else
+                uids.add(uid);
+        }
+
+        // The uids with changed rows, empty when all uids are affected
+        public Set<Integer> getUids() {
+            return Collections.unmodifiableSet(uids);
+        }
+
+        public boolean affects(int uid) {
+            return (all || uids.contains(uid));
+        }
+
+        @Override
+        public String toString() {
+            return "table " + table +
+                    " writes " + writes + " rows " + rows +
+                    " uids " + (all ? "all" : uids.toString()) +
+                    " delay " + (notified - first) + " ms";
+        }
+    }
+
+    public interface Listener {
+        void onChanged(Change change);
+    }
+}
@@ -0,0 +1,252 @@
+package eu.faircode.netguard;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Address ranges of the cidr table in a path compressed binary (Patricia) trie per IP version
+// A lookup follows the bits of the address from the root and keeps the rule of the deepest matching range,
+// so it visits at most 33 or 129 nodes however many ranges are loaded
+// Built off the packet path and never changed once published, lookups take no lock and allocate nothing
+public class CidrTrie {
+    public static final CidrTrie EMPTY = new Builder().build();
+
+    private final Node root4;
+    private final Node root6;
+    private final int size;
+
+    private CidrTrie(Node root4, Node root6, int size) {
+        this.root4 = root4;
+        this.root6 = root6;
+        this.size = size;
+    }
+
+    // The rule of the longest range containing the address, IPv4 addresses in the low long as in IPFilters
+    public IPFilters.Rule get(int version, int protocol, int dport, int uid, long hi, long lo) {
+        if (size == 0)
+            return null;
+
+        Node node;
+        if (version == 4) {
+            node = root4;
+            hi = lo << 32;
+            lo = 0;
+        } else
+            node = root6;
+
+        // Only TCP (6) and UDP (17) have port numbers
+        int port = (protocol == 6 || protocol == 17 ? dport : 0);
+
+        IPFilters.Rule best = null;
+        while (node != null && node.contains(hi, lo)) {
+            if (node.entries != null) {
+                IPFilters.Rule rule = node.match(protocol, port, uid);
+                if (rule != null)
+                    best = rule;
+            }
+            if (node.length == 128)
+                break;
+            node = (bit(hi, lo, node.length) == 0 ? node.zero : node.one);
+        }
+        return best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ranges " + size;
+    }
+
+    private static int bit(long hi, long lo, int i) {
+        return (int) (i < 64 ? (hi >>> (63 - i)) & 1 : (lo >>> (127 - i)) & 1);
+    }
+
+    // Number of leading bits two addresses have in common, at most max
+    private static int common(long ahi, long alo, long bhi, long blo, int max) {
+        long x = ahi ^ bhi;
+        int bits = (x != 0 ? Long.numberOfLeadingZeros(x) : 64 + Long.numberOfLeadingZeros(alo ^ blo));
+        return Math.min(bits, max);
+    }
+
+    private static long maskHi(long hi, int length) {
+        return (length == 0 ? 0 : length >= 64 ? hi : hi & (-1L << (64 - length)));
+    }
+
+    private static long maskLo(long lo, int length) {
+        return (length <= 64 ? 0 : length == 128 ? lo : lo & (-1L << (128 - length)));
+    }
+
+    private static class Node {
+        final long hi; // prefix, the bits beyond the length are zero
+        final long lo;
+        final int length;
+        Node zero;
+        Node one;
+        Entry[] entries; // by uid, the most specific first
+
+        Node(long hi, long lo, int length) {
+            this.hi = maskHi(hi, length);
+            this.lo = maskLo(lo, length);
+            this.length = length;
+        }
+
+        boolean contains(long hi, long lo) {
+            return (maskHi(hi, length) == this.hi && maskLo(lo, length) == this.lo);
+        }
+
+        IPFilters.Rule match(int protocol, int port, int uid) {
+            // First entry of the uid
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid].uid < uid)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+
+            for (int i = low; i < entries.length && entries[i].uid == uid; i++) {
+                Entry entry = entries[i];
+                if ((entry.protocol < 0 || entry.protocol == protocol) &&
+                        (entry.dport < 0 || entry.dport == port))
+                    return entry.rule;
+            }
+            return null;
+        }
+
+        void add(Entry entry) {
+            if (entries == null)
+                entries = new Entry[]{entry};
+            else {
+                entries = Arrays.copyOf(entries, entries.length + 1);
+                entries[entries.length - 1] = entry;
+            }
+        }
+    }
+
+    private static class Entry {
+        final int uid;
+        final int protocol; // -1 for any
+        final int dport; // -1 for any
+        final IPFilters.Rule rule;
+
+        Entry(int uid, int protocol, int dport, IPFilters.Rule rule) {
+            this.uid = uid;
+            this.protocol = protocol;
+            this.dport = dport;
+            this.rule = rule;
+        }
+
+        int specificity() {
+            return (protocol < 0 ? 0 : 2) + (dport < 0 ? 0 : 1);
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.uid != b.uid)
+                return (a.uid < b.uid ? -1 : 1);
+            return Integer.compare(b.specificity(), a.specificity());
+        }
+    };
+
+    public static class Builder {
+        private final Node root4 = new Node(0, 0, 0);
+        private final Node root6 = new Node(0, 0, 0);
+        private int size = 0;
+
+        // A protocol or port of -1 matches any, the host bits of the address are ignored
+        public void add(int uid, int protocol, int dport, InetAddress address, int prefix, boolean block) {
+            byte[] bytes = address.getAddress();
+            boolean v4 = (address instanceof Inet4Address);
+            if (prefix < 0 || prefix > (v4 ? 32 : 128))
+                throw new IllegalArgumentException("Invalid prefix " + address.getHostAddress() + "/" + prefix);
+
+            // Ports of other protocols are zero, as in the access table
+            if (protocol >= 0 && protocol != 6 && protocol != 17)
+                dport = 0;
+
+            long hi = 0;
+            long lo = 0;
+            for (int i = 0; i < bytes.length; i++)
+                if (i < 8)
+                    hi = (hi << 8) | (bytes[i] & 0xFF);
+                else
+                    lo = (lo << 8) | (bytes[i] & 0xFF);
+            if (v4)
+                hi <<= 32;
+
+            IPFilters.Rule rule = new IPFilters.Rule(v4 ? 4 : 6, protocol, dport, uid,
+                    "cidr", address.getHostAddress() + "/" + prefix, block);
+            insert(v4 ? root4 : root6, hi, lo, prefix, new Entry(uid, protocol, dport, rule));
+            size++;
+        }
+
+        private static void insert(Node node, long hi, long lo, int length, Entry entry) {
+            while (true) {
+                if (node.length == length) {
+                    node.add(entry);
+                    return;
+                }
+
+                int bit = bit(hi, lo, node.length);
+                Node child = (bit == 0 ? node.zero : node.one);
+                Node next;
+                if (child == null) {
+                    next = new Node(hi, lo, length);
+                    next.add(entry);
+                } else {
+                    int common = common(child.hi, child.lo, hi, lo, Math.min(child.length, length));
+                    if (common == child.length) {
+                        node = child;
+                        continue;
+                    }
+
+                    // Split the edge to the child where the range diverges
+                    next = new Node(hi, lo, common);
+                    if (bit(child.hi, child.lo, common) == 0)
+                        next.zero = child;
+                    else
+                        next.one = child;
+                    if (common == length)
+                        next.add(entry);
+                    else {
+                        Node leaf = new Node(hi, lo, length);
+                        leaf.add(entry);
+                        if (bit(hi, lo, common) == 0)
+                            next.zero = leaf;
+                        else
+                            next.one = leaf;
+                    }
+                }
+
+                if (bit == 0)
+                    node.zero = next;
+                else
+                    node.one = next;
+                return;
+            }
+        }
+
+        public CidrTrie build() {
+            sort(root4);
+            sort(root6);
+            return new CidrTrie(root4, root6, size);
+        }
+
+        private static void sort(Node node) {
+            if (node == null)
+                return;
+            if (node.entries != null)
+                Arrays.sort(node.entries, ORDER);
+            sort(node.zero);
+            sort(node.one);
+        }
+    }
+}
@@ -23,13 +23,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
@@ -38,15 +38,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "NetGuard.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 21;
+    private static final int DB_VERSION = 26;
 
     public static final int FLOW_COLUMN = 16;
 
@@ -55,28 +60,110 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static List<AccessChangedListener> accessChangedListeners = new ArrayList<>();
     private static List<ForwardChangedListener> forwardChangedListeners = new ArrayList<>();
     private static List<FlowChangedListener> flowChangedListeners = new ArrayList<>();
+    private static List<RuleChangedListener> ruleChangedListeners = new CopyOnWriteArrayList<>();
 
     private static HandlerThread hthread = null;
     private static Handler handler = null;
+    private static ChangeBus changes = null;
 
     private static final Map<Integer, Long> mapUidHosts = new HashMap<>();
 
-    private final static int MSG_LOG = 1;
-    private final static int MSG_ACCESS = 2;
-    private final static int MSG_FORWARD = 3;
-
     private SharedPreferences prefs;
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // One writer lock per table, with write-ahead logging readers do not lock
+    private final LockDomain logLock = new LockDomain("log");
+    private final LockDomain accessLock = new LockDomain("access");
+    private final LockDomain dnsLock = new LockDomain("dns");
+    private final LockDomain forwardLock = new LockDomain("forward");
+    private final LockDomain appLock = new LockDomain("app");
+    private final LockDomain flowLock = new LockDomain("flow");
+    private final LockDomain cidrLock = new LockDomain("cidr");
+    private final UsageAccumulator usageAccumulator = new UsageAccumulator();
+    private final DnsIndex dnsIndex = new DnsIndex();
+    private volatile boolean dnsIndexLoaded = false;
+
+    // Log and flow rows are stored in a table per day, the log and flow views unite them
+    private final DayPartitions logPartitions = new DayPartitions("log") {
+        @Override
+        protected void create(SQLiteDatabase db, String table) {
+            createTableLog(db, table);
+            createIndexLogText(db, table);
+        }
+
+        @Override
+        protected void drop(SQLiteDatabase db, String table) {
+            db.execSQL("DROP TABLE IF EXISTS " + table + "_text");
+        }
+    };
+    private final DayPartitions flowPartitions = new DayPartitions("flow") {
+        @Override
+        protected void create(SQLiteDatabase db, String table) {
+            createTableFlow(db, table);
+            addTriggers(db, table);
+        }
+    };
+
+    private static final String LOG_COLUMNS = "time, version, protocol, flags, saddr, sport, daddr, dport," +
+            " dname, data, uid, allowed, connection, interactive";
+    private static final String FLOW_COLUMNS = "packageName, time, duration, protocol, saddr, sport, daddr, dport," +
+            " sent, received, sentPackets, receivedPackets, tcpFlags, ToS, NewFlow, Finished, last_modified";
+
+    // Pages returned to the file system per incremental vacuum
+    private static final int VACUUM_PAGES = 4096;
+
+    // The one time conversion to incremental vacuum waits for the start of the service to settle
+    private static final long CONVERT_DELAY = 60 * 1000L; // milliseconds
 
     static {
         hthread = new HandlerThread("DatabaseHelper");
         hthread.start();
-        handler = new Handler(hthread.getLooper()) {
+        handler = new Handler(hthread.getLooper());
+        changes = new ChangeBus(hthread.getLooper());
+
+        // The listeners without a summary reload everything
+        changes.addListener(ChangeBus.LOG, new ChangeBus.Listener() {
             @Override
-            public void handleMessage(Message msg) {
-                handleChangedNotification(msg);
+            public void onChanged(ChangeBus.Change change) {
+                for (LogChangedListener listener : logChangedListeners)
+                    try {
+                        listener.onChanged();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
             }
-        };
+        });
+        changes.addListener(ChangeBus.ACCESS, new ChangeBus.Listener() {
+            @Override
+            public void onChanged(ChangeBus.Change change) {
+                for (AccessChangedListener listener : accessChangedListeners)
+                    try {
+                        listener.onChanged();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+            }
+        });
+        changes.addListener(ChangeBus.FORWARD, new ChangeBus.Listener() {
+            @Override
+            public void onChanged(ChangeBus.Change change) {
+                for (ForwardChangedListener listener : forwardChangedListeners)
+                    try {
+                        listener.onChanged();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+            }
+        });
+        changes.addListener(ChangeBus.FLOW, new ChangeBus.Listener() {
+            @Override
+            public void onChanged(ChangeBus.Change change) {
+                for (FlowChangedListener listener : flowChangedListeners)
+                    try {
+                        listener.onChanged();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+            }
+        });
     }
 
     private static DatabaseHelper dh = null;
@@ -133,6 +220,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         super(context, DB_NAME, null, DB_VERSION);
         // super(context, null, null, DB_VERSION);
         prefs = context.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
+        changes.setWindow(prefs.getInt("change_window", (int) ChangeBus.DEFAULT_WINDOW));
 
         if (!once) {
             once = true;
@@ -155,24 +243,66 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(TAG, "Creating database " + DB_NAME + " version " + DB_VERSION);
-        createTableLog(db);
+        long now = new Date().getTime();
+        logPartitions.reset();
+        logPartitions.table(db, now);
         createTableAccess(db);
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);         // Populated en Rule.187
-        // createTableFlow(db);
-        // addTriggers(db);
+        createTableCidr(db);
+        flowPartitions.reset();
+        flowPartitions.table(db, now);
     }
 
     @Override
     public void onConfigure(SQLiteDatabase db) {
+        // Applies to new databases, older ones are converted in onOpen, freed pages are returned by incrementalVacuum
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
         db.enableWriteAheadLogging();
         super.onConfigure(db);
     }
 
-    private void createTableLog(SQLiteDatabase db) {
-        Log.i(TAG, "Creating log table");
-        db.execSQL("CREATE TABLE log (" +
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Databases created before version 23 only switch to incremental vacuum by one full VACUUM,
+        // which rewrites the file, so it is done once in the background and not on the thread opening the database
+        if (!prefs.getBoolean("auto_vacuum_converted", false))
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    convertAutoVacuum();
+                }
+            }, CONVERT_DELAY);
+    }
+
+    private void convertAutoVacuum() {
+        if (prefs.getBoolean("auto_vacuum_converted", false))
+            return;
+
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == 0) {
+                // Not retried when it fails, incremental vacuum then only frees no pages
+                prefs.edit().putBoolean("auto_vacuum_converted", true).commit();
+
+                long start = SystemClock.elapsedRealtime();
+                db.execSQL("VACUUM");
+                Log.i(TAG, "Vacuumed " + DB_NAME + " auto_vacuum=" +
+                        DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) +
+                        " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            } else
+                prefs.edit().putBoolean("auto_vacuum_converted", true).apply();
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    private void createTableLog(SQLiteDatabase db, String table) {
+        Log.i(TAG, "Creating " + table + " table");
+        db.execSQL("CREATE TABLE " + table + " (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", time INTEGER NOT NULL" +
                 ", version INTEGER" +
@@ -189,11 +319,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", connection INTEGER" +
                 ", interactive INTEGER" +
                 ");");
-        db.execSQL("CREATE INDEX idx_log_time ON log(time)");
-        db.execSQL("CREATE INDEX idx_log_dest ON log(daddr)");
-        db.execSQL("CREATE INDEX idx_log_dname ON log(dname)");
-        db.execSQL("CREATE INDEX idx_log_dport ON log(dport)");
-        db.execSQL("CREATE INDEX idx_log_uid ON log(uid)");
+        db.execSQL("CREATE INDEX idx_" + table + "_time ON " + table + "(time)");
+        db.execSQL("CREATE INDEX idx_" + table + "_dest ON " + table + "(daddr)");
+        db.execSQL("CREATE INDEX idx_" + table + "_dname ON " + table + "(dname)");
+        db.execSQL("CREATE INDEX idx_" + table + "_dport ON " + table + "(dport)");
+        db.execSQL("CREATE INDEX idx_" + table + "_uid ON " + table + "(uid)");
+    }
+
+    // Full-text index of a log table for searchLog, the text is read from the table itself
+    private void createIndexLogText(SQLiteDatabase db, String table) {
+        String text = table + "_text";
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + text +
+                " USING fts4(content=\"" + table + "\", daddr, dname, data)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + text + "_insert AFTER INSERT ON " + table +
+                " BEGIN" +
+                " INSERT INTO " + text + " (docid, daddr, dname, data) VALUES (NEW.ID, NEW.daddr, NEW.dname, NEW.data);" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + text + "_delete BEFORE DELETE ON " + table +
+                " BEGIN" +
+                " DELETE FROM " + text + " WHERE docid = OLD.ID;" +
+                " END");
     }
 
     private void createTableAccess(SQLiteDatabase db) {
@@ -226,9 +371,33 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", aname TEXT NOT NULL" +
                 ", resource TEXT NOT NULL" +
                 ", ttl INTEGER" +
+                ", expires INTEGER" +
                 ");");
         db.execSQL("CREATE UNIQUE INDEX idx_dns ON dns(qname, aname, resource)");
         db.execSQL("CREATE INDEX idx_dns_resource ON dns(resource)");
+        db.execSQL("CREATE INDEX idx_dns_expires ON dns(expires)");
+        createIndexDnsText(db);
+    }
+
+    // Full-text index of the dns table for searchDns, updates of the time to live do not touch it
+    private void createIndexDnsText(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS dns_text USING fts4(content=\"dns\", qname, aname, resource)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dns_text_insert AFTER INSERT ON dns" +
+                " BEGIN" +
+                " INSERT INTO dns_text (docid, qname, aname, resource) VALUES (NEW.ID, NEW.qname, NEW.aname, NEW.resource);" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dns_text_delete BEFORE DELETE ON dns" +
+                " BEGIN" +
+                " DELETE FROM dns_text WHERE docid = OLD.ID;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dns_text_before_update BEFORE UPDATE OF qname, aname, resource ON dns" +
+                " BEGIN" +
+                " DELETE FROM dns_text WHERE docid = OLD.ID;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dns_text_after_update AFTER UPDATE OF qname, aname, resource ON dns" +
+                " BEGIN" +
+                " INSERT INTO dns_text (docid, qname, aname, resource) VALUES (NEW.ID, NEW.qname, NEW.aname, NEW.resource);" +
+                " END");
     }
 
     private void createTableForward(SQLiteDatabase db) {
@@ -244,6 +413,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX idx_forward ON forward(protocol, dport)");
     }
 
+    private void createTableCidr(SQLiteDatabase db) {
+        Log.i(TAG, "Creating cidr table");
+        db.execSQL("CREATE TABLE cidr (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", protocol INTEGER NOT NULL" +
+                ", dport INTEGER NOT NULL" +
+                ", address TEXT NOT NULL" +
+                ", prefix INTEGER NOT NULL" +
+                ", block INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_cidr ON cidr(uid, protocol, dport, address, prefix)");
+    }
+
     private void createTableApp(SQLiteDatabase db) {
         Log.i(TAG, "Creating app table");
         db.execSQL("CREATE TABLE app (" +
@@ -257,9 +440,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
-    private void createTableFlow(SQLiteDatabase db){
-        Log.i(TAG, "Creating flow table");
-        db.execSQL("CREATE TABLE flow (" +
+    private void createTableFlow(SQLiteDatabase db, String table){
+        Log.i(TAG, "Creating " + table + " table");
+        db.execSQL("CREATE TABLE " + table + " (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", packageName TEXT" +
                 ", time INTEGER NOT NULL" +
@@ -279,22 +462,43 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", Finished INTEGER " +
                 ", last_modified INTEGER " +
                 ");");
+        createIndexFlow(db, table);
+    }
+
+    // Covers the lookups of the update and compact paths, a flow has one active and one finished row
+    private void createIndexFlow(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_" + table + " ON " + table + "(packageName, time, protocol, saddr, sport, daddr, dport, Finished)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_time ON " + table + "(time)");
     }
 
-    private void addTriggers(SQLiteDatabase db) {
-        Log.i(TAG, "Adding triggers");
-        db.execSQL("CREATE TRIGGER last_modified_insert_trigger"+
-                " AFTER INSERT ON flow FOR EACH ROW" +
+    private void addTriggers(SQLiteDatabase db, String table) {
+        Log.i(TAG, "Adding triggers to " + table);
+        // Only the changed row is stamped, the primary key keeps this a single row lookup
+        db.execSQL("CREATE TRIGGER " + table + "_last_modified_insert_trigger"+
+                " AFTER INSERT ON " + table + " FOR EACH ROW" +
                 " BEGIN" +
-                " UPDATE flow SET last_modified = CAST((strftime('%s','now')- strftime('%S','now')+ strftime('%f','now'))*1000 AS INTEGER);" +
+                " UPDATE " + table + " SET last_modified = CAST((strftime('%s','now')- strftime('%S','now')+ strftime('%f','now'))*1000 AS INTEGER)" +
+                " WHERE ID = NEW.ID;" +
                 " END");
-        db.execSQL("CREATE TRIGGER last_modified_update_trigger"+
-                " AFTER UPDATE ON flow FOR EACH ROW" +
+        db.execSQL("CREATE TRIGGER " + table + "_last_modified_update_trigger"+
+                " AFTER UPDATE ON " + table + " FOR EACH ROW" +
                 " BEGIN" +
-                " UPDATE flow SET last_modified = CAST((strftime('%s','now')- strftime('%S','now')+ strftime('%f','now'))*1000 AS INTEGER);" +
+                " UPDATE " + table + " SET last_modified = CAST((strftime('%s','now')- strftime('%S','now')+ strftime('%f','now'))*1000 AS INTEGER)" +
+                " WHERE ID = NEW.ID;" +
                 " END");
     }
 
+    private boolean tableExists(SQLiteDatabase db, String table) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{table});
+            return cursor.moveToFirst();
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         Cursor cursor = null;
         try {
@@ -315,7 +519,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         db.beginTransaction();
         try {
-            /*
             if (oldVersion < 2) {
                 if (!columnExists(db, "log", "version"))
                     db.execSQL("ALTER TABLE log ADD COLUMN version INTEGER");
@@ -349,7 +552,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             }
             if (oldVersion < 7) {
                 db.execSQL("DROP TABLE log");
-                createTableLog(db);
+                createTableLog(db, "log");
                 oldVersion = 8;
             }
             if (oldVersion < 8) {
@@ -369,7 +572,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 10) {
                 db.execSQL("DROP TABLE log");
                 db.execSQL("DROP TABLE access");
-                createTableLog(db);
+                createTableLog(db, "log");
                 createTableAccess(db);
                 oldVersion = 10;
             }
@@ -423,6 +626,46 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 createTableApp(db);
                 oldVersion = 21;
             }
+            if (oldVersion < 22) {
+                if (tableExists(db, "flow")) {
+                    // The old triggers stamped every row of the table
+                    db.execSQL("DROP TRIGGER IF EXISTS last_modified_insert_trigger");
+                    db.execSQL("DROP TRIGGER IF EXISTS last_modified_update_trigger");
+                    // Keep the latest row of duplicated flows, the unique index would fail otherwise
+                    db.execSQL("DELETE FROM flow WHERE ID NOT IN (SELECT MAX(ID) FROM flow" +
+                            " GROUP BY packageName, time, protocol, saddr, sport, daddr, dport, Finished)");
+                    createIndexFlow(db, "flow");
+                } else
+                    createTableFlow(db, "flow");
+                addTriggers(db, "flow");
+                oldVersion = 22;
+            }
+            if (oldVersion < 23) {
+                partition(db, logPartitions, LOG_COLUMNS);
+                partition(db, flowPartitions, FLOW_COLUMNS);
+                oldVersion = 23;
+            }
+            if (oldVersion < 24) {
+                if (!columnExists(db, "dns", "expires"))
+                    db.execSQL("ALTER TABLE dns ADD COLUMN expires INTEGER");
+                db.execSQL("UPDATE dns SET expires = time + ttl");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_dns_expires ON dns(expires)");
+                oldVersion = 24;
+            }
+            if (oldVersion < 25) {
+                for (String table : logPartitions.tables(db)) {
+                    createIndexLogText(db, table);
+                    db.execSQL("INSERT INTO " + table + "_text (" + table + "_text) VALUES ('rebuild')");
+                }
+                createIndexDnsText(db);
+                db.execSQL("INSERT INTO dns_text (dns_text) VALUES ('rebuild')");
+                oldVersion = 25;
+            }
+
+            if (oldVersion < 26) {
+                createTableCidr(db);
+                oldVersion = 26;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
@@ -430,10 +673,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 Log.i(TAG, DB_NAME + " upgraded to " + DB_VERSION);
             } else
                 throw new IllegalArgumentException(DB_NAME + " upgraded to " + oldVersion + " but required " + DB_VERSION);
-            */
-            if (oldVersion != DB_VERSION) {
-                throw new IllegalArgumentException("Unimplemented upgrade");
-            }
         } catch (Throwable ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         } finally {
@@ -441,6 +680,91 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Move the rows of a table into tables per day, the view takes the name of the table
+    private void partition(SQLiteDatabase db, DayPartitions partitions, String columns) {
+        String name = partitions.getName();
+        String legacy = name + "_legacy";
+        partitions.reset();
+
+        if (tableExists(db, name)) {
+            // Triggers refer to the table by name
+            Cursor triggers = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?", new String[]{name});
+            try {
+                while (triggers.moveToNext())
+                    db.execSQL("DROP TRIGGER IF EXISTS " + triggers.getString(0));
+            } finally {
+                triggers.close();
+            }
+
+            db.execSQL("ALTER TABLE " + name + " RENAME TO " + legacy);
+
+            List<Long> days = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT DISTINCT time / " + DayPartitions.DAY + " FROM " + legacy, null);
+            try {
+                while (cursor.moveToNext())
+                    days.add(cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+
+            for (long day : days) {
+                String table = partitions.table(db, day * DayPartitions.DAY);
+                db.execSQL("INSERT INTO " + table + " (" + columns + ")" +
+                                " SELECT " + columns + " FROM " + legacy + " WHERE time >= ? AND time < ?",
+                        new Object[]{day * DayPartitions.DAY, (day + 1) * DayPartitions.DAY});
+            }
+            Log.i(TAG, "Partitioned " + name + " days=" + days.size());
+
+            db.execSQL("DROP TABLE " + legacy);
+        }
+
+        // The view needs at least one table
+        partitions.table(db, new Date().getTime());
+    }
+
+    // Return the pages freed by dropped or emptied tables in bounded steps, unlike VACUUM this does not rewrite the file
+    private void incrementalVacuum(SQLiteDatabase db) {
+        Cursor cursor = null;
+        try {
+            // Every step frees a page
+            cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+            while (cursor.moveToNext())
+                ;
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    // Compiled statements of one SQL template per day table, for the duration of a transaction
+    private static class Statements {
+        private final SQLiteDatabase db;
+        private final String sql;
+        private final Map<String, SQLiteStatement> compiled = new HashMap<>();
+
+        Statements(SQLiteDatabase db, String sql) {
+            this.db = db;
+            this.sql = sql;
+        }
+
+        SQLiteStatement get(String table) {
+            SQLiteStatement stmt = compiled.get(table);
+            if (stmt == null) {
+                stmt = db.compileStatement(String.format(sql, table));
+                compiled.put(table, stmt);
+            }
+            return stmt;
+        }
+
+        void close() {
+            for (SQLiteStatement stmt : compiled.values())
+                stmt.close();
+            compiled.clear();
+        }
+    }
+
     // Log
 
     public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
@@ -449,9 +773,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        logLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String table = logPartitions.table(db, packet.time);
             db.beginTransactionNonExclusive();
             try {
                 ContentValues cv = new ContentValues();
@@ -494,7 +819,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 cv.put("connection", connection);
                 cv.put("interactive", interactive ? 1 : 0);
 
-                if (db.insert("log", null, cv) == -1)
+                if (db.insert(table, null, cv) == -1)
                     Log.e(TAG, "Insert log failed");
 
                 db.setTransactionSuccessful();
@@ -502,117 +827,185 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            logLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.LOG, 1, packet.uid);
     }
 
-    public void clearLog(int uid) {
-        /*if (!DatabaseHelper.enableTableLog){
-            Log.e(TAG, "Log table is not created.");
-            return;
-        }*/
-        lock.writeLock().lock();
+    // Batched variant for LogWriter, one transaction and one notification for all rows
+    public void insertLog(List<LogWriter.Entry> entries) {
+        logLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String[] tables = new String[entries.size()];
+            for (int i = 0; i < tables.length; i++)
+                tables[i] = logPartitions.table(db, entries.get(i).time);
+
+            Statements insert = new Statements(db, SQL_LOG_INSERT);
             db.beginTransactionNonExclusive();
             try {
-                if (uid < 0)
-                    db.delete("log", null, new String[]{});
-                else
-                    db.delete("log", "uid = ?", new String[]{Integer.toString(uid)});
+                for (int i = 0; i < tables.length; i++) {
+                    LogWriter.Entry entry = entries.get(i);
+                    SQLiteStatement stmt = insert.get(tables[i]);
+                    stmt.clearBindings();
+                    stmt.bindLong(1, entry.time);
+                    stmt.bindLong(2, entry.version);
+                    bindInt(stmt, 3, entry.protocol);
+                    bindString(stmt, 4, entry.flags);
+                    bindString(stmt, 5, entry.saddr);
+                    bindInt(stmt, 6, entry.sport);
+                    bindString(stmt, 7, entry.daddr);
+                    bindInt(stmt, 8, entry.dport);
+                    bindString(stmt, 9, entry.dname);
+                    bindString(stmt, 10, entry.data);
+                    bindInt(stmt, 11, entry.uid);
+                    stmt.bindLong(12, entry.allowed ? 1 : 0);
+                    stmt.bindLong(13, entry.connection);
+                    stmt.bindLong(14, entry.interactive ? 1 : 0);
+                    if (stmt.executeInsert() == -1)
+                        Log.e(TAG, "Insert log failed");
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                insert.close();
             }
-
-            db.execSQL("VACUUM");
         } finally {
-            lock.writeLock().unlock();
+            logLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.LOG, entries.size(), getLogUids(entries));
     }
 
-    public void cleanupLog(long time) {
+    private static final String SQL_LOG_INSERT = "INSERT INTO %s (" + LOG_COLUMNS + ")" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public void clearLog(int uid) {
         /*if (!DatabaseHelper.enableTableLog){
             Log.e(TAG, "Log table is not created.");
             return;
         }*/
-
-        lock.writeLock().lock();
+        int rows = 0;
+        logLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                // There an index on time
-                int rows = db.delete("log", "time < ?", new String[]{Long.toString(time)});
-                Log.i(TAG, "Cleanup log" +
-                        " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
-                        " rows=" + rows);
+            if (uid < 0) {
+                int dropped = logPartitions.clear(db);
+                Log.i(TAG, "Clear log partitions=" + dropped);
+            } else {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (String table : logPartitions.tables(db))
+                        rows += db.delete(table, "uid = ?", new String[]{Integer.toString(uid)});
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
+
+            incrementalVacuum(db);
         } finally {
-            lock.writeLock().unlock();
+            logLock.unlock();
         }
+
+        changes.post(ChangeBus.LOG, rows, uid);
     }
 
-    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+    public void cleanupLog(long time) {
         /*if (!DatabaseHelper.enableTableLog){
             Log.e(TAG, "Log table is not created.");
-            return null;
+            return;
         }*/
 
-        lock.readLock().lock();
+        logLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on time
-            // There is no index on protocol/allowed for write performance
-            String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE (0 = 1";
-            if (udp)
-                query += " OR protocol = 17";
-            if (tcp)
-                query += " OR protocol = 6";
-            if (other)
-                query += " OR (protocol <> 6 AND protocol <> 17)";
-            query += ") AND (0 = 1";
-            if (allowed)
-                query += " OR allowed = 1";
-            if (blocked)
-                query += " OR allowed = 0";
-            query += ")";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{});
+            SQLiteDatabase db = this.getWritableDatabase();
+            // Rows are kept until their whole day is older than the time
+            int dropped = logPartitions.dropBefore(db, time);
+            Log.i(TAG, "Cleanup log" +
+                    " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
+                    " partitions=" + dropped + " " + logPartitions);
+
+            if (dropped > 0)
+                incrementalVacuum(db);
         } finally {
-            lock.readLock().unlock();
+            logLock.unlock();
         }
     }
 
+    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+        /*if (!DatabaseHelper.enableTableLog){
+            Log.e(TAG, "Log table is not created.");
+            return null;
+        }*/
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on time
+        // There is no index on protocol/allowed for write performance
+        String query = "SELECT ID AS _id, *";
+        query += " FROM log";
+        query += " WHERE (0 = 1";
+        if (udp)
+            query += " OR protocol = 17";
+        if (tcp)
+            query += " OR protocol = 6";
+        if (other)
+            query += " OR (protocol <> 6 AND protocol <> 17)";
+        query += ") AND (0 = 1";
+        if (allowed)
+            query += " OR allowed = 1";
+        if (blocked)
+            query += " OR allowed = 0";
+        query += ")";
+        query += " ORDER BY time DESC";
+        return db.rawQuery(query, new String[]{});
+    }
+
     public Cursor searchLog(String find) {
        /* if (!DatabaseHelper.enableTableLog){
             Log.e(TAG, "Log table is not created.");
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on daddr, dname, dport and uid
-            String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
-        } finally {
-            lock.readLock().unlock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a full-text index on daddr, dname and data and an index on dport and uid
+        // Full-text queries cannot go through the log view, each day is searched on its own
+        String match = getTextQuery(find);
+        List<String> args = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        for (String table : logPartitions.tables(db)) {
+            if (query.length() > 0)
+                query.append(" UNION ALL ");
+            query.append("SELECT ID AS _id, * FROM ").append(table);
+            query.append(" WHERE dport = ? OR uid = ?");
+            args.add(find);
+            args.add(find);
+            if (match != null) {
+                query.append(" OR ID IN (SELECT docid FROM ").append(table).append("_text");
+                query.append(" WHERE ").append(table).append("_text MATCH ?)");
+                args.add(match);
+            }
         }
+        query.append(" ORDER BY time DESC");
+        return db.rawQuery(query.toString(), args.toArray(new String[0]));
+    }
+
+    // Words of the search text as a phrase, the last word may be the start of a word
+    // Names and addresses are split into words at dots and colons, like 'google' in www.google.com
+    private static String getTextQuery(String find) {
+        StringBuilder match = new StringBuilder();
+        for (String word : find.toLowerCase(Locale.ROOT).split("[^\\p{Alnum}]+"))
+            if (word.length() > 0) {
+                if (match.length() > 0)
+                    match.append(' ');
+                match.append(word);
+            }
+        if (match.length() == 0)
+            return null;
+        return "\"" + match + "*\"";
     }
 
     // Access
@@ -625,7 +1018,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         int rows;
 
-        lock.writeLock().lock();
+        accessLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -664,66 +1057,92 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, 1, packet.uid);
+        if (block >= 0)
+            notifyRuleChanged(dname == null ? packet.daddr : dname);
         return (rows == 0);
     }
 
+    // Accumulated in memory, written to the access table by flushUsage
     public void updateUsage(Usage usage, String dname) {
-        /*if (!DatabaseHelper.enableTableAccess){
-            Log.e(TAG, "Access table is not created.");
-            return;
-        }*/
+        usageAccumulator.add(usage, dname == null ? usage.DAddr : dname);
+    }
 
-        lock.writeLock().lock();
+    // Drained under the lock, so that getUsage sees the usage either in memory or committed
+    public int flushUsage() {
+        List<UsageAccumulator.Entry> entries;
+        accessLock.lock();
         try {
+            entries = usageAccumulator.drain();
+            if (entries.isEmpty())
+                return 0;
+
             SQLiteDatabase db = this.getWritableDatabase();
+            // There is a segmented index on uid, version, protocol, daddr and dport
+            SQLiteStatement stmt = db.compileStatement("UPDATE access SET" +
+                    " sent = IFNULL(sent, 0) + ?" +
+                    ", received = IFNULL(received, 0) + ?" +
+                    ", connections = IFNULL(connections, 0) + ?" +
+                    " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?");
             db.beginTransactionNonExclusive();
             try {
-                // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null);
-                long sent = 0;
-                long received = 0;
-                int connections = 0;
-                int colSent = cursor.getColumnIndex("sent");
-                int colReceived = cursor.getColumnIndex("received");
-                int colConnections = cursor.getColumnIndex("connections");
-                if (cursor.moveToNext()) {
-                    sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                    received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                    connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
+                for (UsageAccumulator.Entry entry : entries) {
+                    stmt.clearBindings();
+                    stmt.bindLong(1, entry.sent);
+                    stmt.bindLong(2, entry.received);
+                    stmt.bindLong(3, entry.connections);
+                    stmt.bindLong(4, entry.uid);
+                    stmt.bindLong(5, entry.version);
+                    stmt.bindLong(6, entry.protocol);
+                    bindString(stmt, 7, entry.daddr);
+                    stmt.bindLong(8, entry.dport);
+                    int rows = stmt.executeUpdateDelete();
+                    if (rows != 1)
+                        Log.e(TAG, "Update usage failed rows=" + rows + " " + entry);
                 }
-                cursor.close();
-
-                ContentValues cv = new ContentValues();
-                cv.put("sent", sent + usage.Sent);
-                cv.put("received", received + usage.Received);
-                cv.put("connections", connections + 1);
-
-                int rows = db.update("access", cv, selection, selectionArgs);
-                if (rows != 1)
-                    Log.e(TAG, "Update usage failed rows=" + rows);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                stmt.close();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, entries.size(), getUsageUids(entries));
+        return entries.size();
+    }
+
+    // Totals of an uid, or of all uids for a negative uid, including usage not written yet
+    // Holds the access lock, so that a flush cannot move usage between the two reads
+    public UsageAccumulator.Entry getUsage(int uid) {
+        accessLock.lock();
+        try {
+            UsageAccumulator.Entry usage = usageAccumulator.get(uid);
+
+            SQLiteDatabase db = this.getReadableDatabase();
+            // There is a segmented index on uid
+            Cursor cursor = db.rawQuery(
+                    "SELECT SUM(sent), SUM(received), SUM(connections) FROM access" + (uid < 0 ? "" : " WHERE uid = ?"),
+                    (uid < 0 ? null : new String[]{Integer.toString(uid)}));
+            try {
+                if (cursor.moveToFirst()) {
+                    usage.sent += cursor.getLong(0);
+                    usage.received += cursor.getLong(1);
+                    usage.connections += cursor.getInt(2);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            return usage;
+        } finally {
+            accessLock.unlock();
+        }
     }
 
     public void setAccess(long id, int block) {
@@ -732,7 +1151,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        String daddr = null;
+        int auid = -1;
+
+        accessLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -744,15 +1166,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 if (db.update("access", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
                     Log.e(TAG, "Set access failed");
 
+                Cursor cursor = db.rawQuery("SELECT daddr, uid FROM access WHERE ID = ?", new String[]{Long.toString(id)});
+                try {
+                    if (cursor.moveToFirst()) {
+                        daddr = cursor.getString(0);
+                        auid = cursor.getInt(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, 1, auid);
+        if (daddr != null)
+            notifyRuleChanged(daddr);
     }
 
     public void clearAccess() {
@@ -761,22 +1195,25 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        usageAccumulator.clear(-1);
+
+        int rows = 0;
+        accessLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                db.delete("access", null, null);
+                rows = db.delete("access", null, null);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, rows, -1);
     }
 
     public void clearAccess(int uid, boolean keeprules) {
@@ -785,7 +1222,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        usageAccumulator.clear(uid);
+
+        int rows = 0;
+        accessLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -793,19 +1233,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 // There is a segmented index on uid
                 // There is an index on block
                 if (keeprules)
-                    db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
+                    rows = db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
                 else
-                    db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
+                    rows = db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, rows, uid);
     }
 
     public void resetUsage(int uid) {
@@ -814,7 +1254,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        usageAccumulator.clear(uid);
+
+        int rows = 0;
+        accessLock.lock();
         try {
             // There is a segmented index on uid
             SQLiteDatabase db = this.getWritableDatabase();
@@ -824,7 +1267,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 cv.putNull("sent");
                 cv.putNull("received");
                 cv.putNull("connections");
-                db.update("access", cv,
+                rows = db.update("access", cv,
                         (uid < 0 ? null : "uid = ?"),
                         (uid < 0 ? null : new String[]{Integer.toString(uid)}));
 
@@ -833,10 +1276,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            accessLock.unlock();
         }
 
-        notifyAccessChanged();
+        changes.post(ChangeBus.ACCESS, rows, uid);
     }
 
     public Cursor getAccess(int uid) {
@@ -845,21 +1288,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is no index on time for write performance
-            String query = "SELECT a.ID AS _id, a.*";
-            query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
-            query += " FROM access a";
-            query += " WHERE a.uid = ?";
-            query += " ORDER BY a.time DESC";
-            query += " LIMIT 250";
-            return db.rawQuery(query, new String[]{Integer.toString(uid)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is no index on time for write performance
+        String query = "SELECT a.ID AS _id, a.*";
+        query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
+        query += " FROM access a";
+        query += " WHERE a.uid = ?";
+        query += " ORDER BY a.time DESC";
+        query += " LIMIT 250";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public Cursor getAccess() {
@@ -868,15 +1306,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            return db.query("access", null, "block >= 0", null, null, null, "uid");
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        return db.query("access", null, "block >= 0", null, null, null, "uid");
     }
 
     public Cursor getAccessUnset(int uid, int limit, long since) {
@@ -885,24 +1318,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid, block and daddr
-            // There is no index on allowed and time for write performance
-            String query = "SELECT MAX(time) AS time, daddr, allowed";
-            query += " FROM access";
-            query += " WHERE uid = ?";
-            query += " AND block < 0";
-            query += " AND time >= ?";
-            query += " GROUP BY daddr, allowed";
-            query += " ORDER BY time DESC";
-            if (limit > 0)
-                query += " LIMIT " + limit;
-            return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid, block and daddr
+        // There is no index on allowed and time for write performance
+        String query = "SELECT MAX(time) AS time, daddr, allowed";
+        query += " FROM access";
+        query += " WHERE uid = ?";
+        query += " AND block < 0";
+        query += " AND time >= ?";
+        query += " GROUP BY daddr, allowed";
+        query += " ORDER BY time DESC";
+        if (limit > 0)
+            query += " LIMIT " + limit;
+        return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
     }
 
     public long getHostCount(int uid, boolean usecache) {
@@ -917,19 +1345,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     return mapUidHosts.get(uid);
             }
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
-            synchronized (mapUidHosts) {
-                mapUidHosts.put(uid, hosts);
-            }
-            return hosts;
-        } finally {
-            lock.readLock().unlock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
+        synchronized (mapUidHosts) {
+            mapUidHosts.put(uid, hosts);
         }
+        return hosts;
     }
 
     // DNS
@@ -940,7 +1363,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return false;
         }*/
 
-        lock.writeLock().lock();
+        boolean inserted = false;
+        long expires;
+
+        dnsLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -951,9 +1377,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 if (ttl < min)
                     ttl = min;
 
+                expires = rr.Time + ttl * 1000L;
+
                 ContentValues cv = new ContentValues();
                 cv.put("time", rr.Time);
                 cv.put("ttl", ttl * 1000L);
+                cv.put("expires", expires);
 
                 int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
                         new String[]{rr.QName, rr.AName, rr.Resource});
@@ -966,44 +1395,64 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     if (db.insert("dns", null, cv) == -1)
                         Log.e(TAG, "Insert dns failed");
                     else
-                        rows = 1;
+                        inserted = true;
                 } else if (rows != 1)
                     Log.e(TAG, "Update dns failed rows=" + rows);
 
                 db.setTransactionSuccessful();
-
-                return (rows == 0);
             } finally {
                 db.endTransaction();
             }
+
+            // After the commit, readers of the table may be filling the index meanwhile
+            dnsIndex.put(rr.Resource, rr.QName, expires);
         } finally {
-            lock.writeLock().unlock();
+            dnsLock.unlock();
         }
+
+        return inserted;
     }
 
-    public void cleanupDns() {
+    // Deletes at most limit expired records, returns the number deleted
+    // Callers repeat while the limit is reached, so that resolving is not held up by a long delete
+    public int cleanupDns(int limit) {
         /*if (!DatabaseHelper.enableTableDns){
             Log.e(TAG, "DNS table is not created.");
-            return;
+            return 0;
         }*/
 
-        lock.writeLock().lock();
+        long now = new Date().getTime();
+        int rows;
+        dnsLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                // There is no index on time for write performance
-                long now = new Date().getTime();
-                db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
-                Log.i(TAG, "Cleanup DNS");
+                // There is an index on expires
+                SQLiteStatement stmt = db.compileStatement("DELETE FROM dns WHERE ID IN" +
+                        " (SELECT ID FROM dns WHERE expires < ? LIMIT ?)");
+                try {
+                    stmt.bindLong(1, now);
+                    stmt.bindLong(2, limit);
+                    rows = stmt.executeUpdateDelete();
+                } finally {
+                    stmt.close();
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+
+            if (rows < limit) {
+                int names = dnsIndex.cleanup(now);
+                Log.i(TAG, "Cleanup DNS names=" + names + " index " + dnsIndex);
+            }
         } finally {
-            lock.writeLock().unlock();
+            dnsLock.unlock();
         }
+
+        return rows;
     }
 
     public void clearDns() {
@@ -1012,7 +1461,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        dnsLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1023,8 +1472,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             } finally {
                 db.endTransaction();
             }
+
+            dnsIndex.clear();
         } finally {
-            lock.writeLock().unlock();
+            dnsLock.unlock();
         }
     }
 
@@ -1034,23 +1485,68 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
+        // There is no way to known for sure which domain name an app used, so just pick the first one
+        String[] qname = new String[1];
+        if (dnsIndexLoaded && dnsIndex.lookup(ip, qname))
+            return qname[0];
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        if (!dnsIndexLoaded) {
+            loadDnsIndex(db);
+            if (dnsIndex.lookup(ip, qname))
+                return qname[0];
+        }
+
+        // There is a segmented index on resource
+        long version = dnsIndex.getVersion();
+        TreeMap<String, Long> qnames = new TreeMap<>();
+        Cursor cursor = db.rawQuery("SELECT qname, expires FROM dns WHERE resource = ?", new String[]{ip});
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on resource
-            String query = "SELECT d.qname";
-            query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY d.qname";
-            query += " LIMIT 1";
-            // There is no way to known for sure which domain name an app used, so just pick the first one
-            return db.compileStatement(query).simpleQueryForString();
-        } catch (SQLiteDoneException ignored) {
-            // Not found
-            return null;
+            while (cursor.moveToNext())
+                qnames.put(cursor.getString(0), cursor.getLong(1));
         } finally {
-            lock.readLock().unlock();
+            cursor.close();
         }
+        dnsIndex.load(ip, qnames, version);
+
+        return (qnames.isEmpty() ? null : qnames.firstKey());
+    }
+
+    // Fill the index with complete resources, up to its size limit
+    private synchronized void loadDnsIndex(SQLiteDatabase db) {
+        if (dnsIndexLoaded)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        long version = dnsIndex.getVersion();
+        // There is an index on resource
+        Cursor cursor = db.rawQuery("SELECT resource, qname, expires FROM dns ORDER BY resource", new String[]{});
+        try {
+            String resource = null;
+            Map<String, Long> qnames = new HashMap<>();
+            int count = 0;
+            while (cursor.moveToNext()) {
+                String r = cursor.getString(0);
+                if (!r.equals(resource)) {
+                    if (resource != null)
+                        dnsIndex.load(resource, qnames, version);
+                    if (++count > DnsIndex.MAX_RESOURCES) {
+                        resource = null;
+                        break;
+                    }
+                    resource = r;
+                    qnames = new HashMap<>();
+                }
+                qnames.put(cursor.getString(1), cursor.getLong(2));
+            }
+            if (resource != null)
+                dnsIndex.load(resource, qnames, version);
+        } finally {
+            cursor.close();
+        }
+        dnsIndexLoaded = true;
+
+        Log.i(TAG, "Loaded DNS index " + dnsIndex + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
     public Cursor getAlternateQNames(String qname) {
@@ -1059,34 +1555,35 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT DISTINCT d2.qname";
-            query += " FROM dns d1";
-            query += " JOIN dns d2";
-            query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
-            query += " WHERE d1.qname = ?";
-            query += " ORDER BY d2.qname";
-            return db.rawQuery(query, new String[]{qname});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT DISTINCT d2.qname";
+        query += " FROM dns d1";
+        query += " JOIN dns d2";
+        query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
+        query += " WHERE d1.qname = ?";
+        query += " ORDER BY d2.qname";
+        return db.rawQuery(query, new String[]{qname});
     }
 
     public Cursor getDns() {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on resource
-            // There is a segmented index on qname
-            String query = "SELECT ID AS _id, *";
-            query += " FROM dns";
-            query += " ORDER BY resource, qname";
-            return db.rawQuery(query, new String[]{});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on resource
+        // There is a segmented index on qname
+        String query = "SELECT ID AS _id, *";
+        query += " FROM dns";
+        query += " ORDER BY resource, qname";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor searchDns(String find) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a full-text index on qname, aname and resource
+        String match = getTextQuery(find);
+        String query = "SELECT ID AS _id, *";
+        query += " FROM dns";
+        query += " WHERE ID IN (SELECT docid FROM dns_text WHERE dns_text MATCH ?)";
+        query += " ORDER BY resource, qname";
+        return db.rawQuery(query, new String[]{match == null ? "" : match});
     }
 
     public Cursor getAccessDns(String dname) {
@@ -1096,25 +1593,21 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }*/
 
         long now = new Date().getTime();
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getReadableDatabase();
 
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
-            query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            if (dname != null)
-                query += " AND a.daddr = ?";
-
-            return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
-        } finally {
-            lock.readLock().unlock();
-        }
+        // There is a segmented index on dns.qname
+        // There is an index on access.daddr and access.block
+        // Expiry is checked on the joined rows, the index on dns.expires is for cleanup
+        String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
+        query += " FROM access AS a";
+        query += " LEFT JOIN dns AS d";
+        query += "   ON d.qname = a.daddr";
+        query += " WHERE a.block >= 0";
+        query += " AND (d.expires IS NULL OR d.expires >= " + now + ")";
+        if (dname != null)
+            query += " AND a.daddr = ?";
+
+        return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
     }
 
     // Forward
@@ -1125,7 +1618,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        forwardLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1145,10 +1638,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            forwardLock.unlock();
         }
 
-        notifyForwardChanged();
+        changes.post(ChangeBus.FORWARD, 1, ruid);
     }
 
     public void deleteForward() {
@@ -1157,22 +1650,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        int rows = 0;
+        forwardLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                db.delete("forward", null, null);
+                rows = db.delete("forward", null, null);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            forwardLock.unlock();
         }
 
-        notifyForwardChanged();
+        changes.post(ChangeBus.FORWARD, rows, -1);
     }
 
     public void deleteForward(int protocol, int dport) {
@@ -1181,12 +1675,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        int rows = 0;
+        forwardLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                db.delete("forward", "protocol = ? AND dport = ?",
+                rows = db.delete("forward", "protocol = ? AND dport = ?",
                         new String[]{Integer.toString(protocol), Integer.toString(dport)});
 
                 db.setTransactionSuccessful();
@@ -1194,10 +1689,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            forwardLock.unlock();
         }
 
-        notifyForwardChanged();
+        changes.post(ChangeBus.FORWARD, rows, -1);
     }
 
     public Cursor getForwarding() {
@@ -1206,16 +1701,101 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM forward";
+        query += " ORDER BY dport";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    // Cidr
+
+    // A protocol or port of -1 matches any, replaces the block rule of the same range
+    public void addCidr(int uid, int protocol, int dport, String address, int prefix, boolean block) {
+        cidrLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT ID AS _id, *";
-            query += " FROM forward";
-            query += " ORDER BY dport";
-            return db.rawQuery(query, new String[]{});
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                ContentValues cv = new ContentValues();
+                cv.put("uid", uid);
+                cv.put("protocol", protocol);
+                cv.put("dport", dport);
+                cv.put("address", address);
+                cv.put("prefix", prefix);
+                cv.put("block", block ? 1 : 0);
+
+                if (db.insertWithOnConflict("cidr", null, cv, SQLiteDatabase.CONFLICT_REPLACE) == -1)
+                    Log.e(TAG, "Insert cidr failed");
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            cidrLock.unlock();
+        }
+
+        notifyRangesChanged();
+    }
+
+    public void deleteCidr(long id) {
+        int rows = 0;
+        cidrLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                rows = db.delete("cidr", "ID = ?", new String[]{Long.toString(id)});
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            cidrLock.unlock();
+        }
+
+        if (rows > 0)
+            notifyRangesChanged();
+    }
+
+    public void clearCidr(int uid) {
+        int rows = 0;
+        cidrLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                rows = db.delete("cidr", "uid = ?", new String[]{Integer.toString(uid)});
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         } finally {
-            lock.readLock().unlock();
+            cidrLock.unlock();
         }
+
+        if (rows > 0)
+            notifyRangesChanged();
+    }
+
+    public Cursor getCidr() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM cidr";
+        query += " ORDER BY uid, address, prefix";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor getCidr(int uid) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM cidr";
+        query += " WHERE uid = ?";
+        query += " ORDER BY address, prefix";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     // App
@@ -1226,7 +1806,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        appLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1249,7 +1829,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            appLock.unlock();
         }
     }
 
@@ -1259,17 +1839,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return null;
         }*/
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getReadableDatabase();
 
-            // There is an index on package
-            String query = "SELECT * FROM app WHERE package = ?";
+        // There is an index on package
+        String query = "SELECT * FROM app WHERE package = ?";
 
-            return db.rawQuery(query, new String[]{packageName});
-        } finally {
-            lock.readLock().unlock();
-        }
+        return db.rawQuery(query, new String[]{packageName});
     }
 
     public void clearApps() {
@@ -1278,7 +1853,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        appLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1289,7 +1864,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            appLock.unlock();
         }
     }
 
@@ -1301,9 +1876,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String table = flowPartitions.table(db, flow.Time);
             db.beginTransactionNonExclusive();
             try {
                 ContentValues cv = new ContentValues();
@@ -1355,7 +1931,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     cv.put("packageName",packageName);
                 }
 
-                if (db.insert("flow", null, cv) == -1)
+                if (db.insertWithOnConflict(table, null, cv, SQLiteDatabase.CONFLICT_REPLACE) == -1)
                     Log.e(TAG, "Insert flow failed");
 
                 db.setTransactionSuccessful();
@@ -1363,10 +1939,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, 1, flow.Uid);
     }
 
     public void bulkInsertFlow(List<Flow> flowBuffer){
@@ -1375,12 +1951,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String[] tables = flowTables(db, flowBuffer);
             db.beginTransactionNonExclusive();
             try {
                 ContentValues cv = new ContentValues();
+                int i = 0;
 
                 for (Flow flow :
                         flowBuffer) {
@@ -1425,7 +2003,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
                     cv.put("packageName", flow.PackageName);
 
-                    if (db.insert("flow", null, cv) == -1)
+                    if (db.insertWithOnConflict(tables[i++], null, cv, SQLiteDatabase.CONFLICT_REPLACE) == -1)
                         Log.e(TAG, "Insert flow failed");
                 }
 
@@ -1434,10 +2012,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, flowBuffer.size(), getFlowUids(flowBuffer));
     }
 
     public void rawBulkInsertFlow(List<Flow> flowBuffer){
@@ -1446,30 +2024,42 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
 
             // https://medium.com/@JasonWyatt/squeezing-performance-from-sqlite-insertions-971aff98eef2
             SQLiteDatabase db = this.getWritableDatabase();
+            String[] tables = flowTables(db, flowBuffer);
+            Map<String, List<Flow>> flowsByTable = new LinkedHashMap<>();
+            for (int i = 0; i < tables.length; i++) {
+                List<Flow> flows = flowsByTable.get(tables[i]);
+                if (flows == null) {
+                    flows = new ArrayList<>();
+                    flowsByTable.put(tables[i], flows);
+                }
+                flows.add(flowBuffer.get(i));
+            }
+
             db.beginTransactionNonExclusive();
 
-            rawInsert(db,flowBuffer);
+            for (Map.Entry<String, List<Flow>> entry : flowsByTable.entrySet())
+                rawInsert(db, entry.getKey(), entry.getValue());
 
             db.setTransactionSuccessful();
             db.endTransaction();
 
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, flowBuffer.size(), getFlowUids(flowBuffer));
     }
 
-    private void rawInsert(SQLiteDatabase db, List<Flow> flows){
+    private void rawInsert(SQLiteDatabase db, String table, List<Flow> flows){
         int num_flows = flows.size();
         if(flows.size()*FLOW_COLUMN > 999){
             num_flows = 999/(FLOW_COLUMN);
-            rawInsert(db, flows.subList(num_flows, flows.size()));
+            rawInsert(db, table, flows.subList(num_flows, flows.size()));
         }
 
         List<Flow> trimmedFlows = flows.subList(0, num_flows);
@@ -1485,59 +2075,46 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
 
         String columns = "packageName, time, duration, protocol, saddr, sport, daddr, dport, sent, received, sentPackets, receivedPackets, tcpFlags, ToS, NewFlow, Finished";
-        db.execSQL("INSERT INTO flow("+columns+") VALUES "+valuesQuery.toString(), values.toArray());
+        db.execSQL("INSERT OR REPLACE INTO "+table+"("+columns+") VALUES "+valuesQuery.toString(), values.toArray());
 
 
     }
 
     public void compiledBulkInsertFlow(List<Flow> flowBuffer){
-        lock.writeLock().lock();
+        flowLock.lock();
         try{
-            String sql = "INSERT INTO flow (packageName, time, duration, protocol, saddr, sport, daddr, dport, sent, received, sentPackets, receivedPackets, tcpFlags, ToS, NewFlow, Finished) "+
-                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-            SQLiteDatabase db = dh.getWritableDatabase();
-            SQLiteStatement stmt = db.compileStatement(sql);
+            SQLiteDatabase db = this.getWritableDatabase();
+            String[] tables = flowTables(db, flowBuffer);
+            Statements insert = new Statements(db, SQL_FLOW_INSERT);
 
             db.beginTransactionNonExclusive();
-            for (Flow flow :
-                    flowBuffer) {
-                stmt.clearBindings();
-                stmt.bindString(1, flow.PackageName);
-                stmt.bindLong(2, flow.Time);
-                stmt.bindLong(3, flow.Duration);
-                stmt.bindLong(4, flow.Protocol);
-                stmt.bindString(5, flow.SAddr);
-                stmt.bindLong(6, flow.SPort);
-                stmt.bindString(7, flow.DAddr);
-                stmt.bindLong(8, flow.DPort);
-                stmt.bindLong(9, flow.Sent);
-                stmt.bindLong(10, flow.Received);
-                stmt.bindLong(11, flow.SentPackets);
-                stmt.bindLong(12, flow.ReceivedPackets);
-                stmt.bindLong(13, flow.TcpFlags);
-                stmt.bindLong(14, flow.Tos);
-                stmt.bindLong(15, flow.NewFlow?1:0);
-                stmt.bindLong(16, flow.Finished?1:0);
-                stmt.executeInsert();
-            }
-
-            db.setTransactionSuccessful();
-            db.endTransaction();
-
+            try {
+                for (int i = 0; i < tables.length; i++) {
+                    Flow flow = flowBuffer.get(i);
+                    SQLiteStatement stmt = insert.get(tables[i]);
+                    bindFlowInsert(stmt, flow, flow.PackageName);
+                    stmt.executeInsert();
+                }
 
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
         }finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, flowBuffer.size(), getFlowUids(flowBuffer));
     }
 
     // Replace with the latest instance of the flow
     public void updateFlow(Flow flow, String packageName){
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String table = flowPartitions.table(db, flow.Time);
             db.beginTransactionNonExclusive();
             try {
                 ContentValues cv = new ContentValues();
@@ -1584,7 +2161,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     cv.put("packageName",packageName);
                 }
 
-                if (db.update("flow", cv,
+                if (db.updateWithOnConflict(table, cv,
                         "packageName = ? AND " +
                                 "time = ? AND " +
                                 "duration < ? AND " +
@@ -1603,7 +2180,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                                 cv.get("sport").toString(),
                                 cv.get("daddr").toString(),
                                 cv.get("dport").toString()
-                        }) == -1) {
+                        }, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
                     Log.e(TAG, "Udpate flow failed");
                 }
                 db.setTransactionSuccessful();
@@ -1611,210 +2188,153 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, 1, flow.Uid);
     }
 
     // Compact all data flows and allow compatibility with full deletion and only finished one.
     public void compactFlow(Flow flow, String packageName){
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String table = flowPartitions.table(db, flow.Time);
+            SQLiteStatement update = db.compileStatement(String.format(SQL_FLOW_UPDATE, table));
+            SQLiteStatement insert = db.compileStatement(String.format(SQL_FLOW_INSERT, table));
             db.beginTransactionNonExclusive();
             try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", flow.Time);
-                cv.put("duration", flow.Duration);
-
-                if (flow.Protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", flow.Protocol);
-
-                cv.put("saddr", flow.SAddr);
-                if (flow.SPort < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", flow.SPort);
-
-                cv.put("daddr", flow.DAddr);
-                if (flow.DPort < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", flow.DPort);
-
-                cv.put("sent",flow.Sent);
-                cv.put("received",flow.Received);
-
-                cv.put("sentPackets",flow.SentPackets);
-                cv.put("receivedPackets",flow.ReceivedPackets);
-
-                if(flow.Protocol == 6){
-                    cv.put("tcpFlags", flow.TcpFlags);
-                }else{
-                    cv.putNull("tcpFlags");
-                }
-
-                cv.put("ToS", flow.Tos);
-
-
-                if (packageName==null){
-                    cv.putNull("packageName");
-                }else{
-                    cv.put("packageName",packageName);
-                }
-
-                String whereClause =
-                        "packageName = ? AND " +
-                        "time = ? AND " +
-                        "duration < ? AND " +
-                        "protocol = ? AND " +
-                        "saddr = ? AND " +
-                        "sport = ? AND " +
-                        "daddr = ? AND " +
-                        "dport = ? AND " +
-                        "Finished = 0";
-                String[] whereArgs = new String[]{
-                        cv.getAsString("packageName"),
-                        cv.getAsString("time"),
-                        cv.getAsString("duration"),
-                        cv.getAsString("protocol"),
-                        cv.getAsString("saddr"),
-                        cv.getAsString("sport"),
-                        cv.getAsString("daddr"),
-                        cv.getAsString("dport")
-                };
-                Cursor cursor = db.rawQuery(
-                        "SELECT ID, NewFlow, Finished FROM flow WHERE "+whereClause, whereArgs);
-                if (cursor.getCount() == 0){
-                    cv.put("NewFlow", flow.NewFlow);
-                    cv.put("Finished", flow.Finished);
-                    if(db.insert("flow",null,cv)==-1){
-                        Log.e(TAG, "Insert flow failed");
-                    }
-                }else{
-                    cursor.moveToFirst();
-                    cv.put("NewFlow", cursor.getInt(cursor.getColumnIndex("NewFlow")) | (flow.NewFlow?1:0));
-                    cv.put("Finished", cursor.getInt(cursor.getColumnIndex("Finished")) | (flow.Finished?1:0));
-                    if(db.update("flow",cv,"ID=?",
-                            new String[]{cursor.getString(cursor.getColumnIndex("ID"))}) == -1){
-                        Log.e(TAG, "Udpate flow failed");
-                    }
-                }
-                cursor.close();
+                upsertFlow(update, insert, flow, packageName);
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                update.close();
+                insert.close();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, 1, flow.Uid);
     }
 
     public void bulkCompactFlow(List<Flow> flowBuffer){
-
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            String[] tables = flowTables(db, flowBuffer);
+            Statements update = new Statements(db, SQL_FLOW_UPDATE);
+            Statements insert = new Statements(db, SQL_FLOW_INSERT);
             db.beginTransactionNonExclusive();
             try {
-
-
-                String whereClause =
-                        "packageName = ? AND " +
-                                "time = ? AND " +
-                                "duration < ? AND " +
-                                "protocol = ? AND " +
-                                "saddr = ? AND " +
-                                "sport = ? AND " +
-                                "daddr = ? AND " +
-                                "dport = ? AND " +
-                                "Finished = 0";
-                String[] whereArgs;
-                ContentValues cv = new ContentValues();
-
-                for (Flow flow :
-                        flowBuffer) {
-
-                    cv.put("time", flow.Time);
-                    cv.put("duration", flow.Duration);
-
-                    if (flow.Protocol < 0)
-                        cv.putNull("protocol");
-                    else
-                        cv.put("protocol", flow.Protocol);
-
-                    cv.put("saddr", flow.SAddr);
-                    if (flow.SPort < 0)
-                        cv.putNull("sport");
-                    else
-                        cv.put("sport", flow.SPort);
-
-                    cv.put("daddr", flow.DAddr);
-                    if (flow.DPort < 0)
-                        cv.putNull("dport");
-                    else
-                        cv.put("dport", flow.DPort);
-
-                    cv.put("sent", flow.Sent);
-                    cv.put("received", flow.Received);
-
-                    cv.put("sentPackets", flow.SentPackets);
-                    cv.put("receivedPackets", flow.ReceivedPackets);
-
-                    if (flow.Protocol == 6) {
-                        cv.put("tcpFlags", flow.TcpFlags);
-                    } else {
-                        cv.putNull("tcpFlags");
-                    }
-
-                    cv.put("ToS", flow.Tos);
-
-                    cv.put("packageName", flow.PackageName);
-
-                    whereArgs = new String[]{
-                            cv.getAsString("packageName"),
-                            cv.getAsString("time"),
-                            cv.getAsString("duration"),
-                            cv.getAsString("protocol"),
-                            cv.getAsString("saddr"),
-                            cv.getAsString("sport"),
-                            cv.getAsString("daddr"),
-                            cv.getAsString("dport")
-                    };
-                    Cursor cursor = db.rawQuery(
-                            "SELECT ID, NewFlow, Finished FROM flow WHERE " + whereClause, whereArgs);
-                    if (cursor.getCount() == 0) {
-                        cv.put("NewFlow", flow.NewFlow);
-                        cv.put("Finished", flow.Finished);
-                        if (db.insert("flow", null, cv) == -1) {
-                            Log.e(TAG, "Insert flow failed");
-                        }
-                    } else {
-                        cursor.moveToFirst();
-                        cv.put("NewFlow", cursor.getInt(cursor.getColumnIndex("NewFlow")) | (flow.NewFlow ? 1 : 0));
-                        cv.put("Finished", cursor.getInt(cursor.getColumnIndex("Finished")) | (flow.Finished ? 1 : 0));
-                        if (db.update("flow", cv, "ID=?",
-                                new String[]{cursor.getString(cursor.getColumnIndex("ID"))}) == -1) {
-                            Log.e(TAG, "Udpate flow failed");
-                        }
-                    }
-                    cursor.close();
+                for (int i = 0; i < tables.length; i++) {
+                    Flow flow = flowBuffer.get(i);
+                    upsertFlow(update.get(tables[i]), insert.get(tables[i]), flow, flow.PackageName);
                 }
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                update.close();
+                insert.close();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
 
-        notifyLogChanged();
+        changes.post(ChangeBus.FLOW, flowBuffer.size(), getFlowUids(flowBuffer));
+    }
+
+    // Tables of the flows by position, created before the transaction writing the flows
+    private String[] flowTables(SQLiteDatabase db, List<Flow> flows) {
+        String[] tables = new String[flows.size()];
+        for (int i = 0; i < tables.length; i++)
+            tables[i] = flowPartitions.table(db, flows.get(i).Time);
+        return tables;
+    }
+
+    // Merge into the active row of the flow, or the finished row for a finished report, or start a new row
+    // Active reports carry the totals since the start of the flow, so the largest counters win
+    // Native counters restart after a finished report, so repeated finished reports add up, as in FlowAggregator
+    // Unknown packages and ports are NULL, which the unique index treats as distinct, hence IS
+    private static final String SQL_FLOW_UPDATE = "UPDATE OR REPLACE %s SET" +
+            " duration = MAX(duration, ?1)" +
+            ", sent = CASE WHEN Finished = 1 AND ?9 = 1 THEN IFNULL(sent, 0) + ?2 ELSE MAX(sent, ?2) END" +
+            ", received = CASE WHEN Finished = 1 AND ?9 = 1 THEN IFNULL(received, 0) + ?3 ELSE MAX(received, ?3) END" +
+            ", sentPackets = CASE WHEN Finished = 1 AND ?9 = 1 THEN IFNULL(sentPackets, 0) + ?4 ELSE MAX(sentPackets, ?4) END" +
+            ", receivedPackets = CASE WHEN Finished = 1 AND ?9 = 1 THEN IFNULL(receivedPackets, 0) + ?5 ELSE MAX(receivedPackets, ?5) END" +
+            ", tcpFlags = ?6" +
+            ", ToS = ?7" +
+            ", NewFlow = NewFlow | ?8" +
+            ", Finished = ?9" +
+            " WHERE packageName IS ?10 AND time = ?11 AND protocol IS ?12 AND saddr IS ?13" +
+            " AND sport IS ?14 AND daddr IS ?15 AND dport IS ?16 AND Finished IN (0, ?9)";
+
+    // Only for flows without a row yet
+    private static final String SQL_FLOW_INSERT = "INSERT OR REPLACE INTO %s" +
+            " (packageName, time, duration, protocol, saddr, sport, daddr, dport, sent, received," +
+            " sentPackets, receivedPackets, tcpFlags, ToS, NewFlow, Finished)" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private void upsertFlow(SQLiteStatement update, SQLiteStatement insert, Flow flow, String packageName) {
+        update.clearBindings();
+        update.bindLong(1, flow.Duration);
+        update.bindLong(2, flow.Sent);
+        update.bindLong(3, flow.Received);
+        update.bindLong(4, flow.SentPackets);
+        update.bindLong(5, flow.ReceivedPackets);
+        bindInt(update, 6, flow.Protocol == 6 ? flow.TcpFlags : -1);
+        update.bindLong(7, flow.Tos);
+        update.bindLong(8, flow.NewFlow ? 1 : 0);
+        update.bindLong(9, flow.Finished ? 1 : 0);
+        bindString(update, 10, packageName);
+        update.bindLong(11, flow.Time);
+        bindInt(update, 12, flow.Protocol);
+        bindString(update, 13, flow.SAddr);
+        bindInt(update, 14, flow.SPort);
+        bindString(update, 15, flow.DAddr);
+        bindInt(update, 16, flow.DPort);
+        if (update.executeUpdateDelete() > 0)
+            return;
+
+        bindFlowInsert(insert, flow, packageName);
+        if (insert.executeInsert() == -1)
+            Log.e(TAG, "Insert flow failed");
+    }
+
+    private void bindFlowInsert(SQLiteStatement stmt, Flow flow, String packageName) {
+        stmt.clearBindings();
+        bindString(stmt, 1, packageName);
+        stmt.bindLong(2, flow.Time);
+        stmt.bindLong(3, flow.Duration);
+        bindInt(stmt, 4, flow.Protocol);
+        bindString(stmt, 5, flow.SAddr);
+        bindInt(stmt, 6, flow.SPort);
+        bindString(stmt, 7, flow.DAddr);
+        bindInt(stmt, 8, flow.DPort);
+        stmt.bindLong(9, flow.Sent);
+        stmt.bindLong(10, flow.Received);
+        stmt.bindLong(11, flow.SentPackets);
+        stmt.bindLong(12, flow.ReceivedPackets);
+        bindInt(stmt, 13, flow.Protocol == 6 ? flow.TcpFlags : -1);
+        stmt.bindLong(14, flow.Tos);
+        stmt.bindLong(15, flow.NewFlow ? 1 : 0);
+        stmt.bindLong(16, flow.Finished ? 1 : 0);
+    }
+
+    // Negative values are unknown, like in the ContentValues based paths
+    private static void bindInt(SQLiteStatement stmt, int index, int value) {
+        if (value < 0)
+            stmt.bindNull(index);
+        else
+            stmt.bindLong(index, value);
+    }
+
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value == null)
+            stmt.bindNull(index);
+        else
+            stmt.bindString(index, value);
     }
 
     public void cleanupFlow(long time) {
@@ -1823,23 +2343,30 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            // Whole days are dropped, only the day the time falls in needs a delete
+            int dropped = flowPartitions.dropBefore(db, time);
             db.beginTransactionNonExclusive();
             try {
                 // There an index on time
-                int rows = db.delete("flow", "time < ?", new String[]{Long.toString(time)});
+                int rows = 0;
+                for (String table : flowPartitions.tablesBefore(db, time))
+                    rows += db.delete(table, "time < ?", new String[]{Long.toString(time)});
                 Log.i(TAG, "Cleanup flow" +
                         " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
-                        " rows=" + rows);
+                        " partitions=" + dropped + " rows=" + rows);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+
+            if (dropped > 0)
+                incrementalVacuum(db);
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
     }
 
@@ -1851,13 +2378,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
                 // There an index on time
-                int rows = db.delete("flow", "time < ? AND last_modified < ?", new String[]{Long.toString(time), Long.toString(time)});
+                int rows = 0;
+                for (String table : flowPartitions.tablesBefore(db, time))
+                    rows += db.delete(table, "time < ? AND last_modified < ?", new String[]{Long.toString(time), Long.toString(time)});
                 Log.i(TAG, "Safe Cleanup flow" +
                         " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
                         " rows=" + rows);
@@ -1867,7 +2396,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
     }
 
@@ -1877,13 +2406,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
         }*/
 
-        lock.writeLock().lock();
+        flowLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
                 // There an index on time
-                int rows = db.delete("flow", "time < ? AND Finished = 1", new String[]{Long.toString(time)});
+                int rows = 0;
+                for (String table : flowPartitions.tablesBefore(db, time))
+                    rows += db.delete(table, "time < ? AND Finished = 1", new String[]{Long.toString(time)});
                 Log.i(TAG, "Cleanup finished flow" +
                         " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
                         " rows=" + rows);
@@ -1893,22 +2424,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            flowLock.unlock();
         }
     }
 
     public Cursor getFlow(long time){
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getReadableDatabase();
 
-            //
-            String query = "SELECT * FROM flow WHERE time < ?";
+        //
+        String query = "SELECT * FROM flow WHERE time < ?";
 
-            return db.rawQuery(query, new String[]{Long.toString(time)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        return db.rawQuery(query, new String[]{Long.toString(time)});
+    }
+
+    public String getLockStats() {
+        return logLock + ", " + accessLock + ", " + dnsLock + ", " +
+                forwardLock + ", " + appLock + ", " + flowLock + ", " + cidrLock;
     }
 
     public void addLogChangedListener(LogChangedListener listener) {
@@ -1943,58 +2474,67 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         flowChangedListeners.remove(listener);
     }
 
-    private void notifyLogChanged() {
-        Message msg = handler.obtainMessage();
-        msg.what = MSG_LOG;
-        handler.sendMessage(msg);
+    public void addRuleChangedListener(RuleChangedListener listener) {
+        ruleChangedListeners.add(listener);
     }
 
-    private void notifyAccessChanged() {
-        Message msg = handler.obtainMessage();
-        msg.what = MSG_ACCESS;
-        handler.sendMessage(msg);
+    public void removeRuleChangedListener(RuleChangedListener listener) {
+        ruleChangedListeners.remove(listener);
     }
 
-    private void notifyForwardChanged() {
-        Message msg = handler.obtainMessage();
-        msg.what = MSG_FORWARD;
-        handler.sendMessage(msg);
+    // Notified once per window with a summary of the changed rows of the table, see ChangeBus
+    public void addChangeListener(int table, ChangeBus.Listener listener) {
+        changes.addListener(table, listener);
     }
 
-    private static void handleChangedNotification(Message msg) {
-        // Batch notifications
-        try {
-            Thread.sleep(1000);
-            if (handler.hasMessages(msg.what))
-                handler.removeMessages(msg.what);
-        } catch (InterruptedException ignored) {
-        }
+    public void removeChangeListener(int table, ChangeBus.Listener listener) {
+        changes.removeListener(table, listener);
+    }
 
-        // Notify listeners
-        if (msg.what == MSG_LOG) {
-            for (LogChangedListener listener : logChangedListeners)
-                try {
-                    listener.onChanged();
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+    public void setChangeWindow(long window) {
+        prefs.edit().putInt("change_window", (int) window).apply();
+        changes.setWindow(window);
+    }
 
-        } else if (msg.what == MSG_ACCESS) {
-            for (AccessChangedListener listener : accessChangedListeners)
-                try {
-                    listener.onChanged();
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+    private static Set<Integer> getLogUids(List<LogWriter.Entry> entries) {
+        Set<Integer> uids = new HashSet<>();
+        for (LogWriter.Entry entry : entries)
+            uids.add(entry.uid);
+        return uids;
+    }
 
-        } else if (msg.what == MSG_FORWARD) {
-            for (ForwardChangedListener listener : forwardChangedListeners)
-                try {
-                    listener.onChanged();
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
-        }
+    private static Set<Integer> getUsageUids(List<UsageAccumulator.Entry> entries) {
+        Set<Integer> uids = new HashSet<>();
+        for (UsageAccumulator.Entry entry : entries)
+            uids.add(entry.uid);
+        return uids;
+    }
+
+    private static Set<Integer> getFlowUids(List<Flow> flows) {
+        Set<Integer> uids = new HashSet<>();
+        for (Flow flow : flows)
+            uids.add(flow.Uid);
+        return uids;
+    }
+
+    // Not batched, the listeners apply the rule as a delta
+    private void notifyRuleChanged(String daddr) {
+        for (RuleChangedListener listener : ruleChangedListeners)
+            try {
+                listener.onChanged(daddr);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    // Ranges are few and reloaded as a whole
+    private void notifyRangesChanged() {
+        for (RuleChangedListener listener : ruleChangedListeners)
+            try {
+                listener.onRangesChanged();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
     }
 
     public interface LogChangedListener {
@@ -2012,4 +2552,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public interface FlowChangedListener {
         void onChanged();
     }
+
+    // The block rules of the access rows with the destination changed, or of the address ranges
+    public interface RuleChangedListener {
+        void onChanged(String daddr);
+
+        // The rows of the cidr table changed
+        void onRangesChanged();
+    }
 }
@@ -0,0 +1,206 @@
+package eu.faircode.netguard;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+// Stores a table as one table per day of the time column, named like log_20190131 (UTC)
+// A view with the name of the table unites the days for readers, writers go to the table of the day of a row
+// Retention drops whole days, which takes the same time however many rows a day holds
+// Writers hold the writer lock of the table, readers may list the tables without it
+// Tables are created in their own transaction, callers look up the tables of their rows before starting theirs
+public abstract class DayPartitions {
+    private static final String TAG = "NetGuard.Partitions";
+
+    public static final long DAY = 24 * 3600 * 1000L; // milliseconds
+
+    // Row IDs of a day start at day * ID_RANGE, so that they are unique in the view
+    private static final long ID_RANGE = 10000000000L;
+
+    private final String name;
+    private final SimpleDateFormat format;
+    private TreeMap<Long, String> tables = null; // by day since the epoch
+
+    public DayPartitions(String name) {
+        this.name = name;
+        this.format = new SimpleDateFormat("yyyyMMdd", Locale.US);
+        this.format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    // Create the table and its indexes and triggers
+    protected abstract void create(SQLiteDatabase db, String table);
+
+    // Drop what create added besides the table, its indexes and triggers go with it
+    protected void drop(SQLiteDatabase db, String table) {
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // The table for a row with the given time, created when it is the first row of the day
+    public synchronized String table(SQLiteDatabase db, long time) {
+        load(db);
+
+        long day = Math.max(0, time / DAY);
+        String table = tables.get(day);
+        if (table == null) {
+            TreeMap<Long, String> days = new TreeMap<>(tables);
+            db.beginTransactionNonExclusive();
+            try {
+                table = createDay(db, day);
+                days.put(day, table);
+                createView(db, days.values());
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            tables = days;
+        }
+        return table;
+    }
+
+    // All tables, oldest first
+    public synchronized List<String> tables(SQLiteDatabase db) {
+        load(db);
+        return new ArrayList<>(tables.values());
+    }
+
+    // Tables holding rows before the given time, oldest first
+    public synchronized List<String> tablesBefore(SQLiteDatabase db, long time) {
+        load(db);
+        return new ArrayList<>(tables.headMap((time + DAY - 1) / DAY).values());
+    }
+
+    // Drop the days which end before the given time, rows of the day the time falls in are kept
+    // The view keeps an empty table of today when no day is left
+    public synchronized int dropBefore(SQLiteDatabase db, long time) {
+        load(db);
+
+        List<String> expired = new ArrayList<>(tables.headMap(time / DAY).values());
+        if (expired.isEmpty())
+            return 0;
+
+        TreeMap<Long, String> days = new TreeMap<>(tables.tailMap(time / DAY));
+        db.beginTransactionNonExclusive();
+        try {
+            for (String table : expired)
+                dropDay(db, table);
+            if (days.isEmpty()) {
+                long today = new Date().getTime() / DAY;
+                days.put(today, createDay(db, today));
+            }
+            createView(db, days.values());
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        tables = days;
+        return expired.size();
+    }
+
+    // Drop all days, the view keeps an empty table of today
+    public synchronized int clear(SQLiteDatabase db) {
+        load(db);
+
+        long today = new Date().getTime() / DAY;
+        TreeMap<Long, String> days = new TreeMap<>();
+        db.beginTransactionNonExclusive();
+        try {
+            for (String table : tables.values())
+                dropDay(db, table);
+            String table = createDay(db, today);
+            days.put(today, table);
+            createView(db, Collections.singletonList(table));
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        int dropped = tables.size();
+        tables = days;
+        return dropped;
+    }
+
+    // Forget the known tables, for example after the database was recreated
+    public synchronized void reset() {
+        tables = null;
+    }
+
+    private void load(SQLiteDatabase db) {
+        if (tables != null)
+            return;
+
+        TreeMap<Long, String> days = new TreeMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB ?",
+                    new String[]{name + "_[0-9][0-9][0-9][0-9][0-9][0-9][0-9][0-9]"});
+            while (cursor.moveToNext()) {
+                String table = cursor.getString(0);
+                String suffix = table.substring(name.length() + 1);
+                try {
+                    days.put(format.parse(suffix).getTime() / DAY, table);
+                } catch (ParseException ignored) {
+                }
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        tables = days;
+        Log.i(TAG, "Loaded " + tables.size() + " partitions of " + name);
+    }
+
+    private String createDay(SQLiteDatabase db, long day) {
+        String table = name + "_" + format.format(new Date(day * DAY));
+        Log.i(TAG, "Creating partition " + table);
+        create(db, table);
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES (?, ?)",
+                new Object[]{table, day * ID_RANGE});
+        return table;
+    }
+
+    // Dropping a table removes its sequence too
+    private void dropDay(SQLiteDatabase db, String table) {
+        Log.i(TAG, "Dropping partition " + table);
+        drop(db, table);
+        db.execSQL("DROP TABLE IF EXISTS " + table);
+    }
+
+    private void createView(SQLiteDatabase db, Collection<String> tables) {
+        db.execSQL("DROP VIEW IF EXISTS " + name);
+        if (tables.isEmpty())
+            return;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE VIEW ").append(name).append(" AS");
+        boolean first = true;
+        for (String table : tables) {
+            if (!first)
+                sb.append(" UNION ALL");
+            sb.append(" SELECT * FROM ").append(table);
+            first = false;
+        }
+        db.execSQL(sb.toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " partitions " + (tables == null ? "?" : Integer.toString(tables.size()));
+    }
+}
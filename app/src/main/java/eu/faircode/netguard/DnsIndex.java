@@ -0,0 +1,95 @@
+package eu.faircode.netguard;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Resource to query name index mirroring the dns table, so that packets can be named without a query
+// A cached resource holds all its query names, resources which are not cached are looked up in the table
+// The least recently used resources are evicted beyond the limit, expired names at cleanup like in the table
+public class DnsIndex {
+    public static final int MAX_RESOURCES = 4096;
+
+    private final Map<String, TreeMap<String, Long>> resources =
+            new LinkedHashMap<String, TreeMap<String, Long>>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TreeMap<String, Long>> eldest) {
+                    if (size() > MAX_RESOURCES) {
+                        evicted++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private long version = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evicted = 0;
+
+    // Returns false when the resource is not cached, else the first query name in alphabetical order or null
+    public synchronized boolean lookup(String resource, String[] qname) {
+        TreeMap<String, Long> qnames = resources.get(resource);
+        if (qnames == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        qname[0] = (qnames.isEmpty() ? null : qnames.firstKey());
+        return true;
+    }
+
+    // Changes with every update, readers of the table do not hold a lock
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // All query names of a resource as read from the table, expiry times by query name
+    // Ignored when the index changed since the version the table was read at
+    public synchronized boolean load(String resource, Map<String, Long> qnames, long version) {
+        if (version != this.version)
+            return false;
+        resources.put(resource, new TreeMap<>(qnames));
+        return true;
+    }
+
+    // A resolved record, only merged into complete resources
+    public synchronized void put(String resource, String qname, long expires) {
+        version++;
+        TreeMap<String, Long> qnames = resources.get(resource);
+        if (qnames != null)
+            qnames.put(qname, expires);
+    }
+
+    public synchronized int cleanup(long now) {
+        version++;
+        int removed = 0;
+        Iterator<TreeMap<String, Long>> it = resources.values().iterator();
+        while (it.hasNext()) {
+            TreeMap<String, Long> qnames = it.next();
+            Iterator<Long> expires = qnames.values().iterator();
+            while (expires.hasNext())
+                if (expires.next() < now) {
+                    expires.remove();
+                    removed++;
+                }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        version++;
+        resources.clear();
+    }
+
+    public synchronized int size() {
+        return resources.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "resources " + resources.size() +
+                " hits " + hits + " misses " + misses + " evicted " + evicted;
+    }
+}
@@ -22,6 +22,7 @@ public class Flow {
     public int Tos;
     public boolean NewFlow;
     public boolean Finished;
+    public long Network;
 
     private static DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
@@ -42,6 +43,7 @@ public class Flow {
                 " Flags " + TcpFlags +
                 " ToS " + Tos +
                 " NewFlow " + NewFlow +
-                " Finished " + Finished;
+                " Finished " + Finished +
+                " Network " + Network;
     }
 }
@@ -0,0 +1,154 @@
+package eu.faircode.netguard;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Merges the repeated native reports of a connection into one record per export interval
+// Not thread safe, only to be used from the log thread
+public class FlowAggregator {
+    public static final long FLUSH_INTERVAL = 60 * 1000L; // milliseconds
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000L; // milliseconds
+    private static final int MAX_ENTRIES = 8192;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>();
+    private final Key probe = new Key();
+
+    private long merged = 0;
+
+    // Returns false when the table is full and the flow should be exported as is
+    public boolean add(Flow flow, long now) {
+        probe.set(flow);
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES)
+                return false;
+            entry = new Entry(flow);
+            entries.put(new Key().set(flow), entry);
+        } else {
+            entry.merge(flow);
+            merged++;
+        }
+        entry.dirty = true;
+        entry.updated = now;
+        return true;
+    }
+
+    // Emits updated flows into the ring, forgets finished and idle flows
+    public int flush(FlowRing ring, long now, boolean all) {
+        int emitted = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.dirty) {
+                if (!ring.offer(entry.flow))
+                    continue; // Retry at the next interval
+                emitted++;
+                entry.dirty = false;
+                entry.flow.NewFlow = false;
+            }
+            if (all || entry.flow.Finished || now - entry.updated > IDLE_TIMEOUT)
+                it.remove();
+        }
+        return emitted;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "entries " + entries.size() + " merged " + merged;
+    }
+
+    private static class Entry {
+        final Flow flow;
+        boolean dirty;
+        long updated;
+
+        Entry(Flow flow) {
+            this.flow = flow;
+        }
+
+        void merge(Flow update) {
+            if (flow.Finished && update.Finished) {
+                // Native counters restart after a finished report
+                flow.Sent += update.Sent;
+                flow.Received += update.Received;
+                flow.SentPackets += update.SentPackets;
+                flow.ReceivedPackets += update.ReceivedPackets;
+            } else {
+                // Active reports carry the totals since the start of the flow
+                flow.Sent = Math.max(flow.Sent, update.Sent);
+                flow.Received = Math.max(flow.Received, update.Received);
+                flow.SentPackets = Math.max(flow.SentPackets, update.SentPackets);
+                flow.ReceivedPackets = Math.max(flow.ReceivedPackets, update.ReceivedPackets);
+            }
+            flow.Duration = Math.max(flow.Duration, update.Duration);
+            flow.TcpFlags |= update.TcpFlags;
+            flow.Tos = update.Tos;
+            flow.NewFlow = flow.NewFlow || update.NewFlow;
+            flow.Finished = flow.Finished || update.Finished;
+            if (update.PackageName != null)
+                flow.PackageName = update.PackageName;
+            if (update.Network != 0)
+                flow.Network = update.Network;
+        }
+    }
+
+    private static class Key {
+        int uid;
+        int protocol;
+        String saddr;
+        int sport;
+        String daddr;
+        int dport;
+        long time;
+
+        Key set(Flow flow) {
+            uid = flow.Uid;
+            protocol = flow.Protocol;
+            saddr = flow.SAddr;
+            sport = flow.SPort;
+            daddr = flow.DAddr;
+            dport = flow.DPort;
+            time = flow.Time;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return (this.uid == other.uid &&
+                    this.protocol == other.protocol &&
+                    this.sport == other.sport &&
+                    this.dport == other.dport &&
+                    this.time == other.time &&
+                    (this.saddr == null ? other.saddr == null : this.saddr.equals(other.saddr)) &&
+                    (this.daddr == null ? other.daddr == null : this.daddr.equals(other.daddr)));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = uid;
+            h = 31 * h + protocol;
+            h = 31 * h + sport;
+            h = 31 * h + dport;
+            h = 31 * h + (int) (time ^ (time >>> 32));
+            h = 31 * h + (saddr == null ? 0 : saddr.hashCode());
+            h = 31 * h + (daddr == null ? 0 : daddr.hashCode());
+            return h;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package eu.faircode.netguard;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// Append-only flow spill log on memory mapped segment files
+// Records survive a process restart, the read cursor is stored in a separate file
+// Record layout: int length, int crc32, payload
+public class FlowJournal {
+    private static final String TAG = "NetGuard.Journal";
+
+    private static final int SEGMENT_SIZE = 1024 * 1024; // bytes
+    private static final int MAX_SEGMENTS = 16;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "flows-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR = "cursor";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static FlowJournal instance = null;
+
+    private final File dir;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    // Segment sequence numbers, oldest first
+    private final List<Long> segments = new ArrayList<>();
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer = null;
+    private int writeOffset = 0;
+
+    private long readSegment;
+    private int readOffset;
+
+    private boolean inFlight = false;
+    private long pendingSegment;
+    private int pendingOffset;
+
+    private long written = 0;
+    private long dropped = 0;
+
+    public static FlowJournal getInstance(Context context) {
+        synchronized (FlowJournal.class) {
+            if (instance == null)
+                instance = new FlowJournal(context.getApplicationContext().getDir("journal", Context.MODE_PRIVATE));
+            return instance;
+        }
+    }
+
+    private FlowJournal(File dir) {
+        this.dir = dir;
+
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        Log.w(TAG, "Invalid segment " + name);
+                    }
+            }
+        Long[] sorted = segments.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        segments.clear();
+        segments.addAll(Arrays.asList(sorted));
+
+        readCursor();
+
+        try {
+            if (segments.isEmpty())
+                openSegment(readSegment);
+            else {
+                // Continue after the last valid record of the newest segment
+                writeSegment = segments.get(segments.size() - 1);
+                writeBuffer = map(writeSegment, FileChannel.MapMode.READ_WRITE);
+                writeOffset = scan(writeBuffer);
+                for (int i = writeOffset; i < SEGMENT_SIZE; i++)
+                    writeBuffer.put(i, (byte) 0);
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            writeBuffer = null;
+        }
+
+        Log.i(TAG, "Opened " + this);
+    }
+
+    public synchronized int append(FlowRing.Batch batch) {
+        int count = 0;
+        for (int i = 0; i < batch.size; i++) {
+            encode(batch, i);
+            if (!write())
+                break;
+            count++;
+        }
+        written += count;
+        return count;
+    }
+
+    public synchronized int append(Flow flow) {
+        FlowRing.Batch batch = new FlowRing.Batch(1);
+        batch.set(0, flow);
+        batch.size = 1;
+        return append(batch);
+    }
+
+    // Flush dirty pages, for example before the device goes idle
+    public synchronized void sync() {
+        if (writeBuffer != null)
+            writeBuffer.force();
+    }
+
+    public synchronized boolean isEmpty() {
+        return (writeBuffer == null || (readSegment == writeSegment && readOffset >= writeOffset));
+    }
+
+    // Reads up to max records from the cursor, the cursor only moves on commit
+    public synchronized FlowRing.Batch read(int max) {
+        if (inFlight || isEmpty())
+            return null;
+
+        long segment = readSegment;
+        int offset = readOffset;
+        FlowRing.Batch batch = new FlowRing.Batch(max);
+        try {
+            ByteBuffer buffer = (segment == writeSegment ? writeBuffer.duplicate() : map(segment, FileChannel.MapMode.READ_ONLY));
+            while (batch.size < max) {
+                int end = (segment == writeSegment ? writeOffset : SEGMENT_SIZE);
+                int length = (offset + HEADER_SIZE <= end ? buffer.getInt(offset) : 0);
+                if (length <= 0 || offset + HEADER_SIZE + length > end || !verify(buffer, offset, length)) {
+                    if (segment == writeSegment)
+                        break;
+
+                    // Continue with the next segment
+                    int index = segments.indexOf(segment);
+                    if (index < 0 || index + 1 >= segments.size())
+                        break;
+                    segment = segments.get(index + 1);
+                    offset = 0;
+                    buffer = (segment == writeSegment ? writeBuffer.duplicate() : map(segment, FileChannel.MapMode.READ_ONLY));
+                    continue;
+                }
+
+                decode(buffer, offset + HEADER_SIZE, batch, batch.size);
+                batch.size++;
+                offset += HEADER_SIZE + length;
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+
+        if (batch.size == 0) {
+            // Only consumed segments, skip them
+            readSegment = segment;
+            readOffset = offset;
+            writeCursor();
+            deleteConsumed();
+            return null;
+        }
+
+        inFlight = true;
+        pendingSegment = segment;
+        pendingOffset = offset;
+        return batch;
+    }
+
+    // The records returned by the last read were delivered
+    public synchronized void commit() {
+        if (!inFlight)
+            return;
+        inFlight = false;
+        readSegment = pendingSegment;
+        readOffset = pendingOffset;
+        writeCursor();
+        deleteConsumed();
+    }
+
+    // The records returned by the last read will be read again
+    public synchronized void abort() {
+        inFlight = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "segments " + segments.size() +
+                " read " + readSegment + "/" + readOffset +
+                " write " + writeSegment + "/" + writeOffset +
+                " written " + written + " dropped " + dropped;
+    }
+
+    private boolean write() {
+        int length = scratch.position();
+        if (writeBuffer == null || length + HEADER_SIZE > SEGMENT_SIZE)
+            return false;
+
+        if (writeOffset + HEADER_SIZE + length > SEGMENT_SIZE)
+            try {
+                openSegment(writeSegment + 1);
+            } catch (IOException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                return false;
+            }
+
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+
+        // Payload first, the length makes the record valid
+        writeBuffer.position(writeOffset + HEADER_SIZE);
+        writeBuffer.put(scratch.array(), 0, length);
+        writeBuffer.putInt(writeOffset + 4, (int) crc.getValue());
+        writeBuffer.putInt(writeOffset, length);
+        writeOffset += HEADER_SIZE + length;
+        return true;
+    }
+
+    private void openSegment(long segment) throws IOException {
+        if (writeBuffer != null)
+            writeBuffer.force();
+
+        writeSegment = segment;
+        writeBuffer = map(segment, FileChannel.MapMode.READ_WRITE);
+        writeOffset = 0;
+        segments.add(segment);
+
+        // Bounded disk usage, oldest records go first
+        while (segments.size() > MAX_SEGMENTS) {
+            long oldest = segments.remove(0);
+            if (inFlight && pendingSegment <= oldest)
+                inFlight = false;
+            if (readSegment <= oldest) {
+                readSegment = segments.get(0);
+                readOffset = 0;
+                writeCursor();
+            }
+            dropped++;
+            if (!getSegmentFile(oldest).delete())
+                Log.w(TAG, "Could not delete segment " + oldest);
+            Log.w(TAG, "Dropped segment " + oldest + " " + this);
+        }
+    }
+
+    private MappedByteBuffer map(long segment, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(getSegmentFile(segment), mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(mode, 0, SEGMENT_SIZE);
+        } finally {
+            // The mapping stays valid after closing the channel
+            raf.close();
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(dir, SEGMENT_PREFIX + String.format(Locale.ROOT, "%010d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private void deleteConsumed() {
+        while (segments.size() > 1 && segments.get(0) < readSegment) {
+            long segment = segments.remove(0);
+            if (!getSegmentFile(segment).delete())
+                Log.w(TAG, "Could not delete segment " + segment);
+        }
+    }
+
+    private int scan(ByteBuffer buffer) {
+        int offset = 0;
+        while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > SEGMENT_SIZE || !verify(buffer, offset, length))
+                break;
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private boolean verify(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + HEADER_SIZE);
+        payload.limit(offset + HEADER_SIZE + length);
+        crc.reset();
+        while (payload.hasRemaining())
+            crc.update(payload.get());
+        return ((int) crc.getValue() == buffer.getInt(offset + 4));
+    }
+
+    private void readCursor() {
+        readSegment = (segments.isEmpty() ? 0 : segments.get(0));
+        readOffset = 0;
+
+        File file = new File(dir, CURSOR);
+        if (file.exists())
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long segment = raf.readLong();
+                int offset = raf.readInt();
+                if (segments.contains(segment)) {
+                    readSegment = segment;
+                    readOffset = offset;
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    private void writeCursor() {
+        // Write and rename, so that a crash leaves either the old or the new cursor
+        File tmp = new File(dir, CURSOR + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            ByteBuffer cursor = ByteBuffer.allocate(12);
+            cursor.putLong(readSegment);
+            cursor.putInt(readOffset);
+            fos.write(cursor.array());
+            fos.getFD().sync();
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, CURSOR)))
+            Log.e(TAG, "Could not store cursor");
+    }
+
+    private void encode(FlowRing.Batch batch, int i) {
+        byte[] packageName = (batch.packageName[i] == null ? null : batch.packageName[i].getBytes(UTF8));
+        byte[] saddr = (batch.saddr[i] == null ? null : batch.saddr[i].getBytes(UTF8));
+        byte[] daddr = (batch.daddr[i] == null ? null : batch.daddr[i].getBytes(UTF8));
+
+        int size = 5 * 8 + 8 * 4 + 1 + 3 * 2 +
+                (packageName == null ? 0 : packageName.length) +
+                (saddr == null ? 0 : saddr.length) +
+                (daddr == null ? 0 : daddr.length);
+        if (scratch.capacity() < size)
+            scratch = ByteBuffer.allocate(size);
+        scratch.clear();
+
+        scratch.putLong(batch.time[i]);
+        scratch.putLong(batch.duration[i]);
+        scratch.putLong(batch.sent[i]);
+        scratch.putLong(batch.received[i]);
+        scratch.putLong(batch.network[i]);
+        scratch.putInt(batch.uid[i]);
+        scratch.putInt(batch.protocol[i]);
+        scratch.putInt(batch.sport[i]);
+        scratch.putInt(batch.dport[i]);
+        scratch.putInt(batch.sentPackets[i]);
+        scratch.putInt(batch.receivedPackets[i]);
+        scratch.putInt(batch.tcpFlags[i]);
+        scratch.putInt(batch.tos[i]);
+        scratch.put((byte) ((batch.isNewFlow(i) ? 1 : 0) | (batch.isFinished(i) ? 2 : 0)));
+        putString(packageName);
+        putString(saddr);
+        putString(daddr);
+    }
+
+    private void putString(byte[] value) {
+        if (value == null)
+            scratch.putShort((short) -1);
+        else {
+            scratch.putShort((short) value.length);
+            scratch.put(value);
+        }
+    }
+
+    private static void decode(ByteBuffer buffer, int offset, FlowRing.Batch batch, int i) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+
+        batch.time[i] = record.getLong();
+        batch.duration[i] = record.getLong();
+        batch.sent[i] = record.getLong();
+        batch.received[i] = record.getLong();
+        batch.network[i] = record.getLong();
+        batch.uid[i] = record.getInt();
+        batch.protocol[i] = record.getInt();
+        batch.sport[i] = record.getInt();
+        batch.dport[i] = record.getInt();
+        batch.sentPackets[i] = record.getInt();
+        batch.receivedPackets[i] = record.getInt();
+        batch.tcpFlags[i] = record.getInt();
+        batch.tos[i] = record.getInt();
+        int flags = record.get();
+        batch.setFlags(i, (flags & 1) != 0, (flags & 2) != 0);
+        batch.packageName[i] = getString(record);
+        batch.saddr[i] = getString(record);
+        batch.daddr[i] = getString(record);
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getShort();
+        if (length < 0)
+            return null;
+        byte[] value = new byte[length];
+        record.get(value);
+        return new String(value, UTF8);
+    }
+}
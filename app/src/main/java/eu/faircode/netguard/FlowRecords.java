@@ -0,0 +1,92 @@
+package eu.faircode.netguard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Batch of fixed width flow records as packed by capture_flow in netguard.c
+// Records are decoded on demand, so filtered records never become objects
+public class FlowRecords {
+    public static final int ADDR_SIZE = 48;
+    public static final int RECORD_SIZE = 72 + 2 * ADDR_SIZE;
+
+    private static final int OFF_START = 0;
+    private static final int OFF_END = 8;
+    private static final int OFF_SENT = 16;
+    private static final int OFF_RECEIVED = 24;
+    private static final int OFF_PROTOCOL = 32;
+    private static final int OFF_UID = 36;
+    private static final int OFF_SPORT = 40;
+    private static final int OFF_DPORT = 44;
+    private static final int OFF_TOS = 48;
+    private static final int OFF_SENT_PACKETS = 52;
+    private static final int OFF_RECEIVED_PACKETS = 56;
+    private static final int OFF_TCP_FLAGS = 60;
+    private static final int OFF_FLAGS = 64;
+    private static final int OFF_SADDR = 72;
+    private static final int OFF_DADDR = 72 + ADDR_SIZE;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    // Copies the records, the native buffer is reused after the callback returns
+    public FlowRecords(ByteBuffer source, int count) {
+        byte[] data = new byte[count * RECORD_SIZE];
+        ByteBuffer src = source.duplicate();
+        src.clear();
+        src.get(data, 0, data.length);
+        this.buffer = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        this.count = count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getUid(int i) {
+        return buffer.getInt(i * RECORD_SIZE + OFF_UID);
+    }
+
+    public int getProtocol(int i) {
+        return buffer.getInt(i * RECORD_SIZE + OFF_PROTOCOL);
+    }
+
+    public int getDPort(int i) {
+        return buffer.getInt(i * RECORD_SIZE + OFF_DPORT);
+    }
+
+    public Flow toFlow(int i) {
+        int base = i * RECORD_SIZE;
+        long start = buffer.getLong(base + OFF_START);
+        int flags = buffer.getInt(base + OFF_FLAGS);
+
+        Flow flow = new Flow();
+        flow.Time = start;
+        flow.Duration = buffer.getLong(base + OFF_END) - start;
+        flow.Protocol = buffer.getInt(base + OFF_PROTOCOL);
+        flow.SAddr = getString(base + OFF_SADDR);
+        flow.SPort = buffer.getInt(base + OFF_SPORT);
+        flow.DAddr = getString(base + OFF_DADDR);
+        flow.DPort = buffer.getInt(base + OFF_DPORT);
+        flow.Uid = buffer.getInt(base + OFF_UID);
+        flow.Tos = buffer.getInt(base + OFF_TOS);
+        flow.Sent = buffer.getLong(base + OFF_SENT);
+        flow.Received = buffer.getLong(base + OFF_RECEIVED);
+        flow.SentPackets = buffer.getInt(base + OFF_SENT_PACKETS);
+        flow.ReceivedPackets = buffer.getInt(base + OFF_RECEIVED_PACKETS);
+        flow.TcpFlags = buffer.getInt(base + OFF_TCP_FLAGS);
+        flow.NewFlow = (flags & 1) != 0;
+        flow.Finished = (flags & 2) != 0;
+        return flow;
+    }
+
+    private String getString(int offset) {
+        byte[] data = buffer.array();
+        int len = 0;
+        while (len < ADDR_SIZE && data[offset + len] != 0)
+            len++;
+        return new String(data, offset, len, ASCII);
+    }
+}
@@ -0,0 +1,313 @@
+package eu.faircode.netguard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer/single-consumer ring for captured flows
+// Records are kept in preallocated column arrays, a slot sequence number publishes each record
+// Producers never block: when the ring is full the record is dropped and counted
+public class FlowRing {
+    private static final int FLAG_NEW = 1;
+    private static final int FLAG_FINISHED = 2;
+
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+
+    private final AtomicLong offered = new AtomicLong(0);
+    private final AtomicLong drops = new AtomicLong(0);
+    private final AtomicLong highWater = new AtomicLong(0);
+
+    private final int[] uid;
+    private final String[] packageName;
+    private final long[] time;
+    private final long[] duration;
+    private final int[] protocol;
+    private final String[] saddr;
+    private final int[] sport;
+    private final String[] daddr;
+    private final int[] dport;
+    private final long[] sent;
+    private final long[] received;
+    private final int[] sentPackets;
+    private final int[] receivedPackets;
+    private final int[] tcpFlags;
+    private final int[] tos;
+    private final byte[] flags;
+    private final long[] network;
+
+    public FlowRing(int size) {
+        int c = 1;
+        while (c < size)
+            c <<= 1;
+        capacity = c;
+        mask = c - 1;
+
+        sequence = new AtomicLongArray(c);
+        for (int i = 0; i < c; i++)
+            sequence.set(i, i);
+
+        uid = new int[c];
+        packageName = new String[c];
+        time = new long[c];
+        duration = new long[c];
+        protocol = new int[c];
+        saddr = new String[c];
+        sport = new int[c];
+        daddr = new String[c];
+        dport = new int[c];
+        sent = new long[c];
+        received = new long[c];
+        sentPackets = new int[c];
+        receivedPackets = new int[c];
+        tcpFlags = new int[c];
+        tos = new int[c];
+        flags = new byte[c];
+        network = new long[c];
+    }
+
+    public boolean offer(Flow flow) {
+        return offer(flow.Uid, flow.PackageName, flow.Time, flow.Duration, flow.Protocol,
+                flow.SAddr, flow.SPort, flow.DAddr, flow.DPort,
+                flow.Sent, flow.Received, flow.SentPackets, flow.ReceivedPackets,
+                flow.TcpFlags, flow.Tos, flow.NewFlow, flow.Finished, flow.Network);
+    }
+
+    public boolean offer(int uid, String packageName, long time, long duration, int protocol,
+                         String saddr, int sport, String daddr, int dport,
+                         long sent, long received, int sentPackets, int receivedPackets,
+                         int tcpFlags, int tos, boolean newFlow, boolean finished, long network) {
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) (pos & mask);
+            long dif = sequence.get(slot) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (dif < 0) {
+                drops.incrementAndGet();
+                return false;
+            }
+        }
+
+        this.uid[slot] = uid;
+        this.packageName[slot] = packageName;
+        this.time[slot] = time;
+        this.duration[slot] = duration;
+        this.protocol[slot] = protocol;
+        this.saddr[slot] = saddr;
+        this.sport[slot] = sport;
+        this.daddr[slot] = daddr;
+        this.dport[slot] = dport;
+        this.sent[slot] = sent;
+        this.received[slot] = received;
+        this.sentPackets[slot] = sentPackets;
+        this.receivedPackets[slot] = receivedPackets;
+        this.tcpFlags[slot] = tcpFlags;
+        this.tos[slot] = tos;
+        this.flags[slot] = (byte) ((newFlow ? FLAG_NEW : 0) | (finished ? FLAG_FINISHED : 0));
+        this.network[slot] = network;
+
+        // Publish the record to the consumer
+        sequence.lazySet(slot, pos + 1);
+
+        offered.incrementAndGet();
+        long occupancy = pos + 1 - head;
+        long hw = highWater.get();
+        while (occupancy > hw && !highWater.compareAndSet(hw, occupancy))
+            hw = highWater.get();
+
+        return true;
+    }
+
+    // Re-queue records of a batch, for example after a failed upload
+    public int offerAll(Batch batch) {
+        int count = 0;
+        for (int i = 0; i < batch.size; i++)
+            if (offer(batch.uid[i], batch.packageName[i], batch.time[i], batch.duration[i], batch.protocol[i],
+                    batch.saddr[i], batch.sport[i], batch.daddr[i], batch.dport[i],
+                    batch.sent[i], batch.received[i], batch.sentPackets[i], batch.receivedPackets[i],
+                    batch.tcpFlags[i], batch.tos[i], batch.isNewFlow(i), batch.isFinished(i), batch.network[i]))
+                count++;
+        return count;
+    }
+
+    // Consumers are serialized, producers are not affected
+    public synchronized int drainTo(Batch batch) {
+        int n = 0;
+        long pos = head;
+        while (n < batch.capacity) {
+            int slot = (int) (pos & mask);
+            if (sequence.get(slot) != pos + 1)
+                break;
+
+            batch.uid[n] = uid[slot];
+            batch.packageName[n] = packageName[slot];
+            batch.time[n] = time[slot];
+            batch.duration[n] = duration[slot];
+            batch.protocol[n] = protocol[slot];
+            batch.saddr[n] = saddr[slot];
+            batch.sport[n] = sport[slot];
+            batch.daddr[n] = daddr[slot];
+            batch.dport[n] = dport[slot];
+            batch.sent[n] = sent[slot];
+            batch.received[n] = received[slot];
+            batch.sentPackets[n] = sentPackets[slot];
+            batch.receivedPackets[n] = receivedPackets[slot];
+            batch.tcpFlags[n] = tcpFlags[slot];
+            batch.tos[n] = tos[slot];
+            batch.flags[n] = flags[slot];
+            batch.network[n] = network[slot];
+
+            // Release references and hand the slot back to the producers
+            packageName[slot] = null;
+            saddr[slot] = null;
+            daddr[slot] = null;
+            sequence.lazySet(slot, pos + capacity);
+
+            pos++;
+            n++;
+        }
+        head = pos;
+        batch.size = n;
+        return n;
+    }
+
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getOffered() {
+        return offered.get();
+    }
+
+    public long getDrops() {
+        return drops.get();
+    }
+
+    public long getHighWaterMark() {
+        return highWater.get();
+    }
+
+    @Override
+    public String toString() {
+        return "size " + size() + "/" + capacity +
+                " high " + getHighWaterMark() +
+                " offered " + getOffered() +
+                " dropped " + getDrops();
+    }
+
+    // Columnar copy of drained records, reusable by the consumer
+    public static class Batch {
+        public final int capacity;
+        public int size = 0;
+
+        public final int[] uid;
+        public final String[] packageName;
+        public final long[] time;
+        public final long[] duration;
+        public final int[] protocol;
+        public final String[] saddr;
+        public final int[] sport;
+        public final String[] daddr;
+        public final int[] dport;
+        public final long[] sent;
+        public final long[] received;
+        public final int[] sentPackets;
+        public final int[] receivedPackets;
+        public final int[] tcpFlags;
+        public final int[] tos;
+        private final byte[] flags;
+        public final long[] network;
+
+        public Batch(int capacity) {
+            this.capacity = capacity;
+            uid = new int[capacity];
+            packageName = new String[capacity];
+            time = new long[capacity];
+            duration = new long[capacity];
+            protocol = new int[capacity];
+            saddr = new String[capacity];
+            sport = new int[capacity];
+            daddr = new String[capacity];
+            dport = new int[capacity];
+            sent = new long[capacity];
+            received = new long[capacity];
+            sentPackets = new int[capacity];
+            receivedPackets = new int[capacity];
+            tcpFlags = new int[capacity];
+            tos = new int[capacity];
+            flags = new byte[capacity];
+            network = new long[capacity];
+        }
+
+        public void set(int i, Flow flow) {
+            uid[i] = flow.Uid;
+            packageName[i] = flow.PackageName;
+            time[i] = flow.Time;
+            duration[i] = flow.Duration;
+            protocol[i] = flow.Protocol;
+            saddr[i] = flow.SAddr;
+            sport[i] = flow.SPort;
+            daddr[i] = flow.DAddr;
+            dport[i] = flow.DPort;
+            sent[i] = flow.Sent;
+            received[i] = flow.Received;
+            sentPackets[i] = flow.SentPackets;
+            receivedPackets[i] = flow.ReceivedPackets;
+            tcpFlags[i] = flow.TcpFlags;
+            tos[i] = flow.Tos;
+            network[i] = flow.Network;
+            setFlags(i, flow.NewFlow, flow.Finished);
+        }
+
+        public void setFlags(int i, boolean newFlow, boolean finished) {
+            flags[i] = (byte) ((newFlow ? FLAG_NEW : 0) | (finished ? FLAG_FINISHED : 0));
+        }
+
+        public boolean isNewFlow(int i) {
+            return (flags[i] & FLAG_NEW) != 0;
+        }
+
+        public boolean isFinished(int i) {
+            return (flags[i] & FLAG_FINISHED) != 0;
+        }
+
+        public Flow toFlow(int i) {
+            Flow flow = new Flow();
+            flow.Uid = uid[i];
+            flow.PackageName = packageName[i];
+            flow.Time = time[i];
+            flow.Duration = duration[i];
+            flow.Protocol = protocol[i];
+            flow.SAddr = saddr[i];
+            flow.SPort = sport[i];
+            flow.DAddr = daddr[i];
+            flow.DPort = dport[i];
+            flow.Sent = sent[i];
+            flow.Received = received[i];
+            flow.SentPackets = sentPackets[i];
+            flow.ReceivedPackets = receivedPackets[i];
+            flow.TcpFlags = tcpFlags[i];
+            flow.Tos = tos[i];
+            flow.NewFlow = isNewFlow(i);
+            flow.Finished = isFinished(i);
+            flow.Network = network[i];
+            return flow;
+        }
+    }
+}
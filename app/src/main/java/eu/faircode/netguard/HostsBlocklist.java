@@ -0,0 +1,329 @@
+package eu.faircode.netguard;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Blocked domain names compiled from a hosts file into a hash table file, which is memory mapped read only
+// A name is blocked when it or one of its parent domains is listed, unless a deeper domain is allowed
+// The hash of a name is calculated from its end, so that one pass over a name yields the hashes of all parent domains
+// Lookups probe the mapped table once per parent domain and allocate nothing
+// A compiled file is kept next to its hosts file and reused while the hosts file has the same time and size
+public class HostsBlocklist {
+    private static final String TAG = "NetGuard.Hosts";
+
+    private static final int MAGIC = 0x4E474832; // NGH2
+    private static final int HEADER = 28;
+    private static final int MAX_NAME = 253;
+
+    private static final int FNV_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final Names blocked;
+    private final Names allowed;
+
+    // The allowed list is optional
+    public HostsBlocklist(File blocked, File allowed) throws IOException {
+        this.blocked = new Names(blocked);
+        this.allowed = (allowed == null ? null : new Names(allowed));
+    }
+
+    // Open the compiled hosts files, compiling those which are missing or out of date
+    public static HostsBlocklist load(File hosts, File allow, String... extra) throws IOException {
+        File compiled = getCompiled(hosts);
+        if (!Names.isCompiledFrom(compiled, hosts))
+            compile(hosts, compiled, extra);
+
+        File allowed = null;
+        if (allow != null && allow.exists()) {
+            allowed = getCompiled(allow);
+            if (!Names.isCompiledFrom(allowed, allow))
+                compile(allow, allowed);
+        }
+
+        return new HostsBlocklist(compiled, allowed);
+    }
+
+    // Whether the blocklist was compiled from the current hosts files
+    public boolean isCurrent(File hosts, File allow) {
+        boolean allowing = (allow != null && allow.exists());
+        return (blocked.isCompiledFrom(hosts) &&
+                (allowing ? allowed != null && allowed.isCompiledFrom(allow) : allowed == null));
+    }
+
+    // hosts.txt is compiled into hosts.bin
+    private static File getCompiled(File hosts) {
+        String name = hosts.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(hosts.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".bin");
+    }
+
+    public boolean isBlocked(String name) {
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.')
+            end--;
+        if (end == 0)
+            return false;
+
+        int block = blocked.match(name, end);
+        return (block > 0 && (allowed == null || block > allowed.match(name, end)));
+    }
+
+    public int size() {
+        return blocked.count;
+    }
+
+    @Override
+    public String toString() {
+        return "blocked " + blocked.count + " allowed " + (allowed == null ? 0 : allowed.count);
+    }
+
+    // Compile the names of a hosts file, lines are an address and a name, or a name only
+    // Returns the number of names
+    public static int compile(File hosts, File compiled, String... extra) throws IOException {
+        // Before reading, so that a change while reading is compiled again
+        long modified = hosts.lastModified();
+        long length = hosts.length();
+
+        List<String> names = new ArrayList<>();
+        for (String name : extra)
+            names.add(normalize(name, 0, name.length()));
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(hosts));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int end = line.indexOf('#');
+                if (end < 0)
+                    end = line.length();
+
+                // Up to two words
+                int start = skip(line, 0, end, true);
+                int next = skip(line, start, end, false);
+                int second = skip(line, next, end, true);
+                if (second < end) {
+                    int last = skip(line, second, end, false);
+                    if (skip(line, last, end, true) < end) {
+                        Log.i(TAG, "Invalid hosts file line: " + line);
+                        continue;
+                    }
+                    start = second;
+                    next = last;
+                }
+                if (start == next)
+                    continue;
+
+                String name = normalize(line, start, next);
+                if (name == null)
+                    Log.i(TAG, "Invalid hosts file name: " + line);
+                else
+                    names.add(name);
+            }
+        } finally {
+            if (br != null)
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+        }
+
+        // Sorted to drop duplicates
+        Collections.sort(names);
+        int count = 0;
+        for (int i = 0; i < names.size(); i++)
+            if (i == 0 || !names.get(i).equals(names.get(i - 1)))
+                names.set(count++, names.get(i));
+
+        // Hash and offset of each name, at most half of the slots are used
+        int slots = 16;
+        while (slots < count * 2)
+            slots *= 2;
+        int[] table = new int[slots * 2];
+        int offset = 1;
+        for (int n = 0; n < count; n++) {
+            String name = names.get(n);
+            int hash = hash(name, 0, name.length());
+            int slot = slot(hash, slots);
+            while (table[slot * 2 + 1] != 0)
+                slot = (slot + 1) & (slots - 1);
+            table[slot * 2] = hash;
+            table[slot * 2 + 1] = offset;
+            offset += 1 + name.length();
+        }
+
+        File tmp = new File(compiled.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(modified);
+            out.writeLong(length);
+            out.writeInt(count);
+            out.writeInt(slots);
+            for (int value : table)
+                out.writeInt(value);
+
+            // Offsets start at one, zero marks an empty slot
+            out.writeByte(0);
+            for (int n = 0; n < count; n++) {
+                String name = names.get(n);
+                out.writeByte(name.length());
+                out.writeBytes(name);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(compiled))
+            throw new IOException("Rename " + tmp + " failed");
+        return count;
+    }
+
+    // FNV-1a from the last to the first character
+    private static int hash(String name, int start, int end) {
+        int hash = FNV_BASIS;
+        for (int i = end - 1; i >= start; i--)
+            hash = (hash ^ Character.toLowerCase(name.charAt(i))) * FNV_PRIME;
+        return hash;
+    }
+
+    private static int slot(int hash, int slots) {
+        return (hash ^ (hash >>> 16)) & (slots - 1);
+    }
+
+    // Position of the first character which is (not) white space
+    private static int skip(String line, int i, int end, boolean space) {
+        while (i < end && Character.isWhitespace(line.charAt(i)) == space)
+            i++;
+        return i;
+    }
+
+    // Lower case name without a trailing dot, null when not an ASCII name or with an empty label
+    private static String normalize(String line, int start, int end) {
+        if (end > start && line.charAt(end - 1) == '.')
+            end--;
+        if (start == end || end - start > MAX_NAME)
+            return null;
+
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c > 0x7f || (c == '.' && (i == start || line.charAt(i - 1) == '.')))
+                return null;
+            sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    // Magic, time and size of the hosts file, count, number of slots, hash and offset per slot,
+    // and the names, each preceded by its length
+    private static class Names {
+        private final long modified;
+        private final long length;
+        private final MappedByteBuffer buffer;
+        private final int count;
+        private final int slots;
+        private final int base;
+
+        Names(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                // The mapping stays valid
+                raf.close();
+            }
+
+            if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+                throw new IOException("Invalid hosts file " + file);
+            modified = buffer.getLong(4);
+            length = buffer.getLong(12);
+            count = buffer.getInt(20);
+            slots = buffer.getInt(24);
+            base = HEADER + slots * 8;
+            if (count < 0 || slots <= 0 || Integer.bitCount(slots) != 1 || base > buffer.capacity())
+                throw new IOException("Truncated hosts file " + file);
+        }
+
+        boolean isCompiledFrom(File hosts) {
+            return (hosts.lastModified() == modified && hosts.length() == length);
+        }
+
+        // Reads only the header
+        static boolean isCompiledFrom(File compiled, File hosts) {
+            if (!compiled.exists())
+                return false;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(compiled));
+                return (in.readInt() == MAGIC &&
+                        in.readLong() == hosts.lastModified() &&
+                        in.readLong() == hosts.length());
+            } catch (IOException ex) {
+                Log.w(TAG, "Compiled " + compiled + " " + ex.toString());
+                return false;
+            } finally {
+                if (in != null)
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+            }
+        }
+
+        // Number of labels of the deepest listed domain of the name, zero when none is listed
+        int match(String name, int end) {
+            int depth = 0;
+            int deepest = 0;
+            int hash = FNV_BASIS;
+            for (int i = end - 1; ; i--)
+                if (i < 0 || name.charAt(i) == '.') {
+                    depth++;
+                    if (contains(hash, name, i + 1, end))
+                        deepest = depth;
+                    if (i < 0)
+                        break;
+                    hash = (hash ^ '.') * FNV_PRIME;
+                } else
+                    hash = (hash ^ Character.toLowerCase(name.charAt(i))) * FNV_PRIME;
+            return deepest;
+        }
+
+        private boolean contains(int hash, String name, int start, int end) {
+            int slot = slot(hash, slots);
+            while (true) {
+                int offset = buffer.getInt(HEADER + slot * 8 + 4);
+                if (offset == 0)
+                    return false;
+                if (buffer.getInt(HEADER + slot * 8) == hash && equals(base + offset, name, start, end))
+                    return true;
+                slot = (slot + 1) & (slots - 1);
+            }
+        }
+
+        private boolean equals(int p, String name, int start, int end) {
+            if ((buffer.get(p++) & 0xff) != end - start || p + end - start > buffer.capacity())
+                return false;
+            for (int i = start; i < end; i++)
+                if (Character.toLowerCase(name.charAt(i)) != (buffer.get(p++) & 0xff))
+                    return false;
+            return true;
+        }
+    }
+}
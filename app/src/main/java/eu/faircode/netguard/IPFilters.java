@@ -0,0 +1,547 @@
+package eu.faircode.netguard;
+
+import android.util.Log;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Address rules of the access table by uid, version, protocol and port
+// Rules are kept in an open addressing table keyed by primitives:
+// version, protocol, port and uid packed into a long and the address as two longs, IPv4 in the low one
+// Lookups parse the address text in place and take no lock and allocate nothing
+// Changed access rules and resolved names are applied as deltas,
+// deltas arriving while a rebuild runs are replayed onto the rebuilt rules before the swap
+// Writers index the rules by origin and by expiry, so deltas and pruning do not walk the table
+// Addresses without a rule of their own fall back to the longest matching range of the cidr table
+public class IPFilters {
+    private static final String TAG = "NetGuard.IPFilters";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Rules are indexed by bucket of expiry time
+    private static final long EXPIRY_BUCKET = 60 * 1000L; // milliseconds
+
+    // Marks the slot of a removed rule, so that lookups continue past it
+    private static final Rule REMOVED = new Rule();
+
+    private static final ThreadLocal<Address> address = new ThreadLocal<Address>() {
+        @Override
+        protected Address initialValue() {
+            return new Address();
+        }
+    };
+
+    private volatile Table filters = new Table(INITIAL_CAPACITY);
+    private volatile CidrTrie ranges = CidrTrie.EMPTY;
+
+    private int generation = 0;
+    private List<Delta> journal = null; // while rebuilding
+
+    // The rule for a connection to a numeric address
+    public Rule get(int version, int protocol, int dport, int uid, String daddr) {
+        Address addr = address.get();
+        if (!addr.parse(version, daddr))
+            return null;
+        Rule rule = filters.get(key(version, protocol, dport, uid), addr.hi, addr.lo);
+        if (rule == null)
+            rule = ranges.get(version, protocol, dport, uid, addr.hi, addr.lo);
+        return rule;
+    }
+
+    // Replaces all ranges at once
+    public void setRanges(CidrTrie ranges) {
+        this.ranges = ranges;
+    }
+
+    // The rules of an access name as read from the access and dns tables
+    // Replacing removes the rules of the name which were not read, else rules are only added or extended
+    public synchronized void update(String origin, List<Rule> rules, boolean replace) {
+        apply(filters, origin, rules, replace);
+        if (journal != null)
+            journal.add(new Delta(origin, rules, replace));
+    }
+
+    // Remove the rules of expired DNS records
+    public synchronized int prune(long now) {
+        return filters.prune(now);
+    }
+
+    // Also discards a running rebuild
+    public synchronized void clear() {
+        generation++;
+        journal = null;
+        filters = new Table(INITIAL_CAPACITY);
+        ranges = CidrTrie.EMPTY;
+    }
+
+    public synchronized Builder rebuild() {
+        generation++;
+        journal = new ArrayList<>();
+        return new Builder(generation);
+    }
+
+    // Returns false when the rebuild was superseded
+    public synchronized boolean swap(Builder builder) {
+        if (builder.generation != generation)
+            return false;
+
+        for (Delta delta : journal)
+            apply(builder.filters, delta.origin, delta.rules, delta.replace);
+        journal = null;
+        filters = builder.filters;
+        return true;
+    }
+
+    public int size() {
+        return filters.size;
+    }
+
+    @Override
+    public String toString() {
+        Table table = filters;
+        return "rules " + table.size + " capacity " + table.capacity() + " " + ranges;
+    }
+
+    // Only TCP (6) and UDP (17) have port numbers
+    public static long key(int version, int protocol, int dport, int uid) {
+        if (protocol != 6 && protocol != 17)
+            dport = 0;
+        return ((version & 0xFL) << 56) |
+                ((protocol & 0xFFL) << 48) |
+                ((dport & 0xFFFFL) << 32) |
+                (uid & 0xFFFFFFFFL);
+    }
+
+    private static void apply(Table filters, String origin, List<Rule> rules, boolean replace) {
+        Set<Rule> current = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+        for (Rule rule : rules)
+            current.add(merge(filters, rule));
+
+        if (replace)
+            for (Rule rule : filters.getRules(origin))
+                if (!current.contains(rule))
+                    filters.remove(rule);
+    }
+
+    // Blocking wins when names of different access rules resolve to the same address
+    private static Rule merge(Table filters, Rule rule) {
+        Rule existing = filters.get(rule.key, rule.hi, rule.lo);
+        if (existing == null || !existing.isBlocked() || existing.origin.equals(rule.origin)) {
+            filters.put(rule);
+            if (existing != null && !existing.origin.equals(rule.origin))
+                Log.w(TAG, "Address conflict " + rule + " was " + existing);
+            return rule;
+        } else {
+            existing.updateExpires(rule.expires);
+            Log.w(TAG, "Address updated " + existing);
+            return existing;
+        }
+    }
+
+    // Linear probing over rules, readers see either the old or the new rule of a slot
+    // Writers hold the lock of IPFilters, growing publishes a new slot array
+    // The indexes are only used by writers
+    private static class Table {
+        private volatile AtomicReferenceArray<Rule> slots;
+        private int used = 0; // slots of rules and removed rules
+        private volatile int size = 0;
+
+        private final Map<String, Set<Rule>> origins = new HashMap<>();
+        // Rules by bucket of their expiry time when added, extended rules move on when their bucket is pruned
+        private final TreeMap<Long, Set<Rule>> expiries = new TreeMap<>();
+        private final Map<Rule, Long> buckets = new IdentityHashMap<>();
+
+        Table(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        Rule get(long key, long hi, long lo) {
+            AtomicReferenceArray<Rule> slots = this.slots;
+            int mask = slots.length() - 1;
+            int i = hash(key, hi, lo) & mask;
+            while (true) {
+                Rule rule = slots.get(i);
+                if (rule == null)
+                    return null;
+                if (rule.key == key && rule.hi == hi && rule.lo == lo && rule != REMOVED)
+                    return rule;
+                i = (i + 1) & mask;
+            }
+        }
+
+        void put(Rule rule) {
+            if ((used + 1) * 2 > slots.length())
+                grow();
+
+            int mask = slots.length() - 1;
+            int i = hash(rule.key, rule.hi, rule.lo) & mask;
+            int free = -1;
+            while (true) {
+                Rule existing = slots.get(i);
+                if (existing == null)
+                    break;
+                if (existing == REMOVED) {
+                    if (free < 0)
+                        free = i;
+                } else if (existing.key == rule.key && existing.hi == rule.hi && existing.lo == rule.lo) {
+                    slots.set(i, rule);
+                    unindex(existing);
+                    index(rule);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+
+            if (free < 0)
+                used++;
+            else
+                i = free;
+            slots.set(i, rule);
+            size++;
+            index(rule);
+        }
+
+        void remove(Rule rule) {
+            AtomicReferenceArray<Rule> slots = this.slots;
+            int mask = slots.length() - 1;
+            int i = hash(rule.key, rule.hi, rule.lo) & mask;
+            while (true) {
+                Rule existing = slots.get(i);
+                if (existing == null)
+                    return;
+                if (existing == rule) {
+                    slots.set(i, REMOVED);
+                    size--;
+                    unindex(rule);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        int capacity() {
+            return slots.length();
+        }
+
+        // A copy, so that the rules can be removed meanwhile
+        List<Rule> getRules(String origin) {
+            Set<Rule> rules = origins.get(origin);
+            return (rules == null ? Collections.<Rule>emptyList() : new ArrayList<>(rules));
+        }
+
+        // Only visits the buckets up to the current one
+        int prune(long now) {
+            int pruned = 0;
+            long limit = now / EXPIRY_BUCKET;
+            while (!expiries.isEmpty() && expiries.firstKey() <= limit) {
+                boolean current = (expiries.firstKey() == limit);
+                for (Rule rule : expiries.pollFirstEntry().getValue()) {
+                    buckets.remove(rule);
+                    if (rule.expires < now) {
+                        remove(rule);
+                        pruned++;
+                    } else
+                        expire(rule);
+                }
+                // Rules of the current bucket which did not expire yet were put back
+                if (current)
+                    break;
+            }
+            return pruned;
+        }
+
+        private void index(Rule rule) {
+            Set<Rule> rules = origins.get(rule.origin);
+            if (rules == null) {
+                rules = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+                origins.put(rule.origin, rules);
+            }
+            rules.add(rule);
+            expire(rule);
+        }
+
+        private void unindex(Rule rule) {
+            Set<Rule> rules = origins.get(rule.origin);
+            if (rules != null && rules.remove(rule) && rules.isEmpty())
+                origins.remove(rule.origin);
+
+            Long bucket = buckets.remove(rule);
+            if (bucket != null) {
+                Set<Rule> expiring = expiries.get(bucket);
+                if (expiring != null && expiring.remove(rule) && expiring.isEmpty())
+                    expiries.remove(bucket);
+            }
+        }
+
+        private void expire(Rule rule) {
+            Long bucket = rule.expires / EXPIRY_BUCKET;
+            Set<Rule> rules = expiries.get(bucket);
+            if (rules == null) {
+                rules = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+                expiries.put(bucket, rules);
+            }
+            rules.add(rule);
+            buckets.put(rule, bucket);
+        }
+
+        // Doubles when more than a quarter of the slots hold rules, else only drops the removed rules
+        private void grow() {
+            int capacity = slots.length();
+            while (size * 4 > capacity)
+                capacity *= 2;
+
+            AtomicReferenceArray<Rule> grown = new AtomicReferenceArray<>(capacity);
+            int mask = capacity - 1;
+            for (int s = 0; s < slots.length(); s++) {
+                Rule rule = slots.get(s);
+                if (rule == null || rule == REMOVED)
+                    continue;
+                int i = hash(rule.key, rule.hi, rule.lo) & mask;
+                while (grown.get(i) != null)
+                    i = (i + 1) & mask;
+                grown.set(i, rule);
+            }
+            used = size;
+            slots = grown;
+        }
+
+        private static int hash(long key, long hi, long lo) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h ^= hi * 0xC2B2AE3D27D4EB4FL;
+            h ^= lo * 0x165667B19E3779F9L;
+            h ^= (h >>> 32);
+            h *= 0xD6E8FEB86659FD93L;
+            h ^= (h >>> 32);
+            return (int) h;
+        }
+    }
+
+    public static class Builder {
+        private final int generation;
+        private final Table filters = new Table(INITIAL_CAPACITY);
+
+        private Builder(int generation) {
+            this.generation = generation;
+        }
+
+        public void add(Rule rule) {
+            merge(filters, rule);
+        }
+    }
+
+    private static class Delta {
+        final String origin;
+        final List<Rule> rules;
+        final boolean replace;
+
+        Delta(String origin, List<Rule> rules, boolean replace) {
+            this.origin = origin;
+            this.rules = rules;
+            this.replace = replace;
+        }
+    }
+
+    // Numeric address text as two longs, one per thread to parse without allocating
+    private static class Address {
+        long hi;
+        long lo;
+        private final int[] groups = new int[8];
+
+        boolean parse(int version, String text) {
+            hi = 0;
+            if (version == 4) {
+                lo = parse4(text, 0, text.length());
+                if (lo >= 0)
+                    return true;
+            } else if (version == 6 && parse6(text))
+                return true;
+
+            // For example IPv4 addresses with fewer than four parts
+            try {
+                byte[] bytes = InetAddress.getByName(text).getAddress();
+                if (bytes.length != (version == 4 ? 4 : 16))
+                    return false;
+                hi = (bytes.length == 16 ? toLong(bytes, 0) : 0);
+                lo = toLong(bytes, bytes.length == 16 ? 8 : 0);
+                return true;
+            } catch (UnknownHostException ex) {
+                Log.w(TAG, "Address " + text + " " + ex.toString());
+                return false;
+            }
+        }
+
+        private boolean parse6(String text) {
+            int end = text.indexOf('%');
+            if (end < 0)
+                end = text.length();
+
+            int n = 0;
+            int gap = -1;
+            int i = 0;
+            if (text.startsWith("::")) {
+                gap = 0;
+                i = 2;
+            }
+            while (i < end) {
+                int start = i;
+                int value = 0;
+                int digits = 0;
+                int digit;
+                while (i < end && (digit = Character.digit(text.charAt(i), 16)) >= 0) {
+                    if (++digits > 4)
+                        break;
+                    value = (value << 4) | digit;
+                    i++;
+                }
+
+                // Embedded IPv4 address
+                if (i < end && text.charAt(i) == '.') {
+                    long v4 = parse4(text, start, end);
+                    if (v4 < 0 || n > 6)
+                        return false;
+                    groups[n++] = (int) (v4 >>> 16);
+                    groups[n++] = (int) (v4 & 0xFFFF);
+                    break;
+                }
+
+                if (digits == 0 || digits > 4 || n == 8)
+                    return false;
+                groups[n++] = value;
+                if (i == end)
+                    break;
+                if (text.charAt(i++) != ':' || i == end)
+                    return false;
+                if (text.charAt(i) == ':') {
+                    if (gap >= 0)
+                        return false;
+                    gap = n;
+                    i++;
+                }
+            }
+            if (gap < 0 ? n != 8 : n > 7)
+                return false;
+
+            hi = 0;
+            lo = 0;
+            int zeros = 8 - n;
+            for (int w = 0; w < 8; w++) {
+                int group;
+                if (gap < 0 || w < gap)
+                    group = groups[w];
+                else if (w < gap + zeros)
+                    group = 0;
+                else
+                    group = groups[w - zeros];
+                if (w < 4)
+                    hi = (hi << 16) | group;
+                else
+                    lo = (lo << 16) | group;
+            }
+            return true;
+        }
+
+        // Dotted quad, -1 when not one
+        private static long parse4(String text, int start, int end) {
+            long address = 0;
+            int parts = 0;
+            int i = start;
+            while (i < end) {
+                int value = 0;
+                int digits = 0;
+                char c;
+                while (i < end && (c = text.charAt(i)) >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    if (++digits > 3 || value > 255)
+                        return -1;
+                    i++;
+                }
+                if (digits == 0 || ++parts > 4)
+                    return -1;
+                address = (address << 8) | value;
+                if (i < end && (text.charAt(i++) != '.' || i == end))
+                    return -1;
+            }
+            return (parts == 4 ? address : -1);
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < Math.min(offset + 8, bytes.length); i++)
+                value = (value << 8) | (bytes[i] & 0xFF);
+            return value;
+        }
+    }
+
+    public static class Rule {
+        private final long key;
+        private final long hi;
+        private final long lo;
+        private final String origin; // access daddr
+        private final String name;
+        private final boolean block;
+        private volatile long expires;
+
+        public Rule(int version, int protocol, int dport, int uid,
+                    InetAddress address, String origin, String name, boolean block, long expires) {
+            byte[] bytes = address.getAddress();
+            this.key = key(version, protocol, dport, uid);
+            this.hi = (address instanceof Inet4Address ? 0 : Address.toLong(bytes, 0));
+            this.lo = (address instanceof Inet4Address ? Address.toLong(bytes, 0) : Address.toLong(bytes, 8));
+            this.origin = origin;
+            this.name = name;
+            this.block = block;
+            this.expires = expires;
+        }
+
+        // Range of the cidr table, which does not expire
+        Rule(int version, int protocol, int dport, int uid, String origin, String name, boolean block) {
+            this.key = key(version, protocol, dport, uid);
+            this.hi = 0;
+            this.lo = 0;
+            this.origin = origin;
+            this.name = name;
+            this.block = block;
+            this.expires = Long.MAX_VALUE;
+        }
+
+        private Rule() {
+            this.key = -1;
+            this.hi = -1;
+            this.lo = -1;
+            this.origin = null;
+            this.name = null;
+            this.block = false;
+        }
+
+        public boolean isBlocked() {
+            return this.block;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() > this.expires;
+        }
+
+        public synchronized void updateExpires(long expires) {
+            this.expires = Math.max(this.expires, expires);
+        }
+
+        @Override
+        public String toString() {
+            return "v" + (key >>> 56) +
+                    " p" + ((key >>> 48) & 0xFF) +
+                    " port=" + ((key >>> 32) & 0xFFFF) +
+                    " uid=" + (int) key +
+                    " " + this.name;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package eu.faircode.netguard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serializes the writers of a group of tables and records how long they waited for each other and held the lock
+// Readers do not take the lock, with write-ahead logging they read from a snapshot
+public class LockDomain {
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong acquired = new AtomicLong(0);
+    private final AtomicLong contended = new AtomicLong(0);
+    private final AtomicLong waited = new AtomicLong(0); // nanoseconds
+    private final AtomicLong maxWait = new AtomicLong(0); // nanoseconds
+    private final AtomicLong held = new AtomicLong(0); // nanoseconds
+    private final AtomicLong maxHeld = new AtomicLong(0); // nanoseconds
+    private long locked; // by the holder, outermost acquisition
+
+    public LockDomain(String name) {
+        this.name = name;
+    }
+
+    public void lock() {
+        acquired.incrementAndGet();
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            long wait = System.nanoTime() - start;
+
+            contended.incrementAndGet();
+            waited.addAndGet(wait);
+            max(maxWait, wait);
+        }
+        if (lock.getHoldCount() == 1)
+            locked = System.nanoTime();
+    }
+
+    public void unlock() {
+        if (lock.getHoldCount() == 1) {
+            long hold = System.nanoTime() - locked;
+            held.addAndGet(hold);
+            max(maxHeld, hold);
+        }
+        lock.unlock();
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waited.get());
+    }
+
+    @Override
+    public String toString() {
+        return name +
+                " locked " + acquired.get() +
+                " contended " + contended.get() +
+                " waited " + getWaitTime() + " ms" +
+                " max " + TimeUnit.NANOSECONDS.toMicros(maxWait.get()) + " us" +
+                " held " + TimeUnit.NANOSECONDS.toMillis(held.get()) + " ms" +
+                " max " + TimeUnit.NANOSECONDS.toMicros(maxHeld.get()) + " us";
+    }
+}
@@ -0,0 +1,88 @@
+package eu.faircode.netguard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects packets for the log table and writes them in one transaction
+// Not thread safe, only to be used from the log thread
+public class LogWriter {
+    public static final long FLUSH_INTERVAL = 1000L; // milliseconds
+    public static final int MAX_ROWS = 256;
+
+    private final DatabaseHelper dh;
+    private List<Entry> pending = new ArrayList<>();
+
+    private long written = 0;
+    private long batches = 0;
+
+    public LogWriter(DatabaseHelper dh) {
+        this.dh = dh;
+    }
+
+    // Returns true when the batch is full and should be flushed now
+    public boolean add(Packet packet, String dname, int connection, boolean interactive) {
+        pending.add(new Entry(packet, dname, connection, interactive));
+        return (pending.size() >= MAX_ROWS);
+    }
+
+    public int flush() {
+        if (pending.isEmpty())
+            return 0;
+
+        List<Entry> batch = pending;
+        pending = new ArrayList<>();
+        dh.insertLog(batch);
+
+        written += batch.size();
+        batches++;
+        return batch.size();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "pending " + pending.size() + " written " + written + " batches " + batches;
+    }
+
+    // Copy of the packet, the caller may change the packet after adding it
+    public static class Entry {
+        public final long time;
+        public final int version;
+        public final int protocol;
+        public final String flags;
+        public final String saddr;
+        public final int sport;
+        public final String daddr;
+        public final int dport;
+        public final String data;
+        public final int uid;
+        public final boolean allowed;
+        public final String dname;
+        public final int connection;
+        public final boolean interactive;
+
+        Entry(Packet packet, String dname, int connection, boolean interactive) {
+            this.time = packet.time;
+            this.version = packet.version;
+            this.protocol = packet.protocol;
+            this.flags = packet.flags;
+            this.saddr = packet.saddr;
+            this.sport = packet.sport;
+            this.daddr = packet.daddr;
+            this.dport = packet.dport;
+            this.data = packet.data;
+            this.uid = packet.uid;
+            this.allowed = packet.allowed;
+            this.dname = dname;
+            this.connection = connection;
+            this.interactive = interactive;
+        }
+    }
+}
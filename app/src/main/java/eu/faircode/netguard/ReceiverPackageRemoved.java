@@ -38,9 +38,12 @@ public class ReceiverPackageRemoved extends BroadcastReceiver {
         if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
             int uid = intent.getIntExtra(Intent.EXTRA_UID, 0);
             if (uid > 0) {
+                UidCache.invalidate(uid);
+
                 DatabaseHelper dh = DatabaseHelper.getInstance(context);
                 dh.clearLog(uid);
                 dh.clearAccess(uid, false);
+                dh.clearCidr(uid);
 
                 NotificationManagerCompat.from(context).cancel(uid); // installed notification
                 NotificationManagerCompat.from(context).cancel(uid + 10000); // access notification
@@ -0,0 +1,90 @@
+package eu.faircode.netguard;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+// The rules read by the native callbacks, never changed once published
+// Changes build a new snapshot, which replaces the current one as a whole, so readers never wait for a reload
+// The address rules are kept apart in IPFilters, which is updated per resolved name
+public class RuleSnapshot {
+    public static final RuleSnapshot EMPTY = new RuleSnapshot(
+            Collections.<Integer, Boolean>emptyMap(),
+            Collections.<Integer>emptySet(),
+            Collections.<Integer, Forward>emptyMap(),
+            Collections.<Integer, Boolean>emptyMap(),
+            null);
+
+    private final Map<Integer, Boolean> uidAllowed;
+    private final Set<Integer> uidKnown;
+    private final Map<Integer, Forward> forward; // by port
+    private final Map<Integer, Boolean> notify;
+    private final HostsBlocklist hosts;
+
+    private RuleSnapshot(Map<Integer, Boolean> uidAllowed, Set<Integer> uidKnown,
+                         Map<Integer, Forward> forward, Map<Integer, Boolean> notify,
+                         HostsBlocklist hosts) {
+        this.uidAllowed = uidAllowed;
+        this.uidKnown = uidKnown;
+        this.forward = forward;
+        this.notify = notify;
+        this.hosts = hosts;
+    }
+
+    // Null when there are no rules for the uid
+    public Boolean isAllowed(int uid) {
+        return uidAllowed.get(uid);
+    }
+
+    public boolean isKnown(int uid) {
+        return uidKnown.contains(uid);
+    }
+
+    public Forward getForward(int dport) {
+        return forward.get(dport);
+    }
+
+    public boolean isForwarded(int dport) {
+        return forward.containsKey(dport);
+    }
+
+    public boolean isNotify(int uid) {
+        Boolean value = notify.get(uid);
+        return (value == null || value);
+    }
+
+    public boolean isDomainBlocked(String name) {
+        return (hosts != null && hosts.isBlocked(name));
+    }
+
+    public HostsBlocklist getHosts() {
+        return hosts;
+    }
+
+    // The snapshot takes the maps, which must not be changed afterwards
+    public RuleSnapshot withUids(Map<Integer, Boolean> uidAllowed, Set<Integer> uidKnown) {
+        return new RuleSnapshot(Collections.unmodifiableMap(uidAllowed), Collections.unmodifiableSet(uidKnown),
+                forward, notify, hosts);
+    }
+
+    public RuleSnapshot withForward(Map<Integer, Forward> forward) {
+        return new RuleSnapshot(uidAllowed, uidKnown, Collections.unmodifiableMap(forward), notify, hosts);
+    }
+
+    public RuleSnapshot withNotify(Map<Integer, Boolean> notify) {
+        return new RuleSnapshot(uidAllowed, uidKnown, forward, Collections.unmodifiableMap(notify), hosts);
+    }
+
+    public RuleSnapshot withHosts(HostsBlocklist hosts) {
+        return new RuleSnapshot(uidAllowed, uidKnown, forward, notify, hosts);
+    }
+
+    @Override
+    public String toString() {
+        return "allowed " + uidAllowed.size() +
+                " known " + uidKnown.size() +
+                " forward " + forward.size() +
+                " notify " + notify.size() +
+                " hosts " + (hosts == null ? 0 : hosts.size());
+    }
+}
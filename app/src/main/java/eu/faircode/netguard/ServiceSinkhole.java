@@ -56,7 +56,6 @@ import android.util.TypedValue;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.Inet4Address;
@@ -68,6 +67,7 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -79,8 +79,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
@@ -125,24 +124,26 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
-    private long last_hosts_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
-    private Map<Integer, Forward> mapForward = new HashMap<>();
-    private Map<Integer, Boolean> mapNotify = new HashMap<>();
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // Read by the native callbacks without locking, writers replace it while holding the snapshot lock
+    private volatile RuleSnapshot snapshot = RuleSnapshot.EMPTY;
+    private final LockDomain snapshotLock = new LockDomain("rules");
+    private final AtomicInteger hostsGeneration = new AtomicInteger(0);
+    private final IPFilters ipFilters = new IPFilters();
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
     private volatile Looper statsLooper;
+    private volatile Looper ruleLooper;
     private volatile CommandHandler commandHandler;
     private volatile LogHandler logHandler;
+    private volatile RuleHandler ruleHandler;
     //private volatile StatsHandler statsHandler;
 
     private List<Flow> flowBuffer = new ArrayList<>();
-    private static LinkedBlockingQueue<Flow> flowQueue = new LinkedBlockingQueue<>(1000);
+    private static final FlowRing flowRing = new FlowRing(4096);
+    private static final int FLOW_SPILL_THRESHOLD = 3072; // records
+    private volatile Networking.Address networkAddress = null;
+    private volatile VpnConfig config = null;
 
     private static final int NOTIFY_ENFORCING = 1;
     private static final int NOTIFY_WAITING = 2;
@@ -169,6 +170,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static final int MSG_PACKET = 4;
     private static final int MSG_USAGE = 5;
     private static final int MSG_FLOW = 6;
+    private static final int MSG_FLOW_FLUSH = 7;
+    private static final int MSG_LOG_FLUSH = 8;
+    private static final int MSG_USAGE_FLUSH = 9;
+    private static final long USAGE_FLUSH_INTERVAL = 10 * 1000L; // milliseconds
+    private static final int MSG_DNS_CLEANUP = 10;
+    private static final int DNS_CLEANUP_BATCH = 1000; // records
+    private static final long DNS_CLEANUP_DELAY = 200L; // milliseconds between batches
+    private static final int MSG_RULES_REBUILD = 11;
+    private static final int MSG_RULES_UPDATE = 12;
+    private static final int MSG_RULES_PRUNE = 13;
+    private static final int MSG_HOSTS_LOAD = 14;
+    private static final int MSG_RULES_RANGES = 15;
 
     private enum State {none, waiting, enforcing, stats}
 
@@ -251,8 +264,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    public static LinkedBlockingQueue<Flow> getQueue(){
-        return flowQueue;
+    public static FlowRing getFlowRing(){
+        return flowRing;
     }
 
     private final class CommandHandler extends Handler {
@@ -614,8 +627,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             // Keep log records for three days
             DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupLog(new Date().getTime() - 3 * 24 * 3600 * 1000L);
 
-            // Clear expired DNS records
-            DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns();
+            // Clear expired DNS records in batches on the log thread
+            if (logHandler != null && !logHandler.hasMessages(MSG_DNS_CLEANUP))
+                logHandler.sendEmptyMessage(MSG_DNS_CLEANUP);
+
+            Log.i(TAG, "Database locks " + DatabaseHelper.getInstance(ServiceSinkhole.this).getLockStats());
+            Log.i(TAG, "Rules " + snapshot + " lock " + snapshotLock);
 
             /*
             // Check for update
@@ -690,6 +707,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     private final class LogHandler extends Handler {
+        private FlowAggregator flowAggregator = new FlowAggregator();
+        private LogWriter logWriter = null;
+
         public LogHandler(Looper looper) {
             super(looper);
         }
@@ -707,7 +727,23 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         break;
 
                     case MSG_FLOW:
-                        flow((Flow) msg.obj);
+                        flows((FlowRecords) msg.obj);
+                        break;
+
+                    case MSG_FLOW_FLUSH:
+                        flushFlows(msg.arg1 > 0, msg.arg2 > 0);
+                        break;
+
+                    case MSG_LOG_FLUSH:
+                        flushLog();
+                        break;
+
+                    case MSG_USAGE_FLUSH:
+                        flushUsage();
+                        break;
+
+                    case MSG_DNS_CLEANUP:
+                        cleanupDns(msg.arg1);
                         break;
 
                     default:
@@ -720,74 +756,127 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = ServiceSinkhole.this.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
-            boolean log = prefs.getBoolean("log", false);
-            boolean log_app = prefs.getBoolean("log_app", false);
+            VpnConfig config = ServiceSinkhole.this.config;
+            boolean log = config.log;
+            boolean log_app = config.logApp;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
             // Get real name
             String dname = dh.getQName(packet.uid, packet.daddr);
 
-            // Traffic log
-            if (log)
-                dh.insertLog(packet, dname, connection, interactive);
+            // Traffic log, written behind in batches
+            if (log) {
+                if (logWriter == null)
+                    logWriter = new LogWriter(dh);
+                if (logWriter.add(packet, dname, connection, interactive))
+                    flushLog();
+                else if (!hasMessages(MSG_LOG_FLUSH))
+                    sendEmptyMessageDelayed(MSG_LOG_FLUSH, LogWriter.FLUSH_INTERVAL);
+            }
 
             // Application log
             if (log_app && packet.uid >= 0 && !(packet.uid == 0 && packet.protocol == 17 && packet.dport == 53)) {
                 if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
                     packet.dport = 0;
                 if (dh.updateAccess(packet, dname, -1)) {
-                    lock.readLock().lock();
-                    if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
-                        // showAccessNotification(packet.uid);
-                    lock.readLock().unlock();
+                    // if (snapshot.isNotify(packet.uid))
+                    //     showAccessNotification(packet.uid);
                 }
             }
         }
 
+        private void flushLog() {
+            removeMessages(MSG_LOG_FLUSH);
+            if (logWriter != null && !logWriter.isEmpty()) {
+                int written = logWriter.flush();
+                Log.d(TAG, "Flushed " + written + " log rows, writer " + logWriter);
+            }
+        }
+
         private void usage(Usage usage) {
             if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = ServiceSinkhole.this.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
-                boolean filter = prefs.getBoolean("filter", false);
-                boolean log_app = prefs.getBoolean("log_app", false);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
+                VpnConfig config = ServiceSinkhole.this.config;
+                if (config.filter && config.logApp && config.trackUsage) {
                     DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
                     String dname = dh.getQName(usage.Uid, usage.DAddr);
                     Log.i(TAG, "Usage account " + usage + " dname=" + dname);
                     dh.updateUsage(usage, dname);
+                    if (!hasMessages(MSG_USAGE_FLUSH))
+                        sendEmptyMessageDelayed(MSG_USAGE_FLUSH, USAGE_FLUSH_INTERVAL);
                 }
             }
         }
 
+        private void flushUsage() {
+            removeMessages(MSG_USAGE_FLUSH);
+            int rows = DatabaseHelper.getInstance(ServiceSinkhole.this).flushUsage();
+            if (rows > 0)
+                Log.d(TAG, "Flushed usage of " + rows + " access rows");
+        }
+
+        private void cleanupDns(int total) {
+            int rows = DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns(DNS_CLEANUP_BATCH);
+            total += rows;
+            if (rows < DNS_CLEANUP_BATCH) {
+                Log.i(TAG, "Cleaned up " + total + " DNS records");
+                if (total > 0)
+                    ruleHandler.sendEmptyMessage(MSG_RULES_PRUNE);
+            } else {
+                // Let packets through before the next batch
+                Message msg = obtainMessage();
+                msg.what = MSG_DNS_CLEANUP;
+                msg.arg1 = total;
+                sendMessageDelayed(msg, DNS_CLEANUP_DELAY);
+            }
+        }
+
+        private void flows(FlowRecords records) {
+            for (int i = 0; i < records.size(); i++) {
+                // Skip system DNS traffic without decoding the record
+                int uid = records.getUid(i);
+                if (uid < 0 || (uid == 0 && records.getProtocol(i) == 17 && records.getDPort(i) == 53))
+                    continue;
+                flow(records.toFlow(i));
+            }
+        }
+
         private void flow(Flow flow){
             // TODO
             // Discard DNS traffic from system
             if (flow.Uid >= 0 && !(flow.Uid == 0 && flow.Protocol == 17 && flow.DPort == 53)){
-                SharedPreferences prefs = ServiceSinkhole.this.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
-                boolean collect_flow = prefs.getBoolean("collect_flow", false);
-                if(collect_flow){
+                VpnConfig config = ServiceSinkhole.this.config;
+                if(config.collectFlow){
                     flow.PackageName = Info.getNameForUid(ServiceSinkhole.this, flow.Uid);
 
-                    String address = Networking.getNetworkAddress(ServiceSinkhole.this);
+                    // Maintained by the network callbacks
+                    Networking.Address address = networkAddress;
                     if(address != null){
-                        flow.SAddr = address;
-                        Log.d(TAG, "Source address changed to: "+ address);
+                        String saddr = address.getSource(flow.DAddr);
+                        if (saddr != null)
+                            flow.SAddr = saddr;
+                        flow.Network = address.network;
                     }
 
-                    boolean anonymize = prefs.getBoolean("anonymizeApp", false);
-                    if(anonymize){
+                    if(config.anonymizeApp){
                         flow.SAddr = "0.0.0.0";
                         //flow.DAddr = flow.DAddr.substring(0, flow.DAddr.lastIndexOf(".")+1) + "0";
                     }
 
                     Log.i(TAG, "Collected flow " + flow);
 
-                    if(!flowQueue.offer(flow)){
-                        Log.d(TAG, "Flow queue is full");
+                    // Merge repeated reports of the same connection until the next flush
+                    if (flowAggregator.add(flow, SystemClock.elapsedRealtime())) {
+                        if (!hasMessages(MSG_FLOW_FLUSH))
+                            sendEmptyMessageDelayed(MSG_FLOW_FLUSH, FlowAggregator.FLUSH_INTERVAL);
+                    } else {
+                        if (flowRing.size() > FLOW_SPILL_THRESHOLD)
+                            spillFlows(false);
+                        if(!flowRing.offer(flow)){
+                            Log.d(TAG, "Flow ring is full, " + flowRing);
+                        }
                     }
-                    // Log.i(TAG, "Flow queue has "+flowQueue.size()+ " elements");
+                    // Log.i(TAG, "Flow ring " + flowRing);
 
                     /*
                     DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
@@ -817,8 +906,158 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
             }
         }
+
+        private void flushFlows(boolean all, boolean spill) {
+            removeMessages(MSG_FLOW_FLUSH);
+            if (flowRing.size() > FLOW_SPILL_THRESHOLD)
+                spillFlows(false);
+            int emitted = flowAggregator.flush(flowRing, SystemClock.elapsedRealtime(), all);
+            Log.i(TAG, "Flushed " + emitted + " flows, aggregator " + flowAggregator + " ring " + flowRing);
+            if (spill || flowRing.size() > FLOW_SPILL_THRESHOLD)
+                spillFlows(spill);
+            if (!flowAggregator.isEmpty())
+                sendEmptyMessageDelayed(MSG_FLOW_FLUSH, FlowAggregator.FLUSH_INTERVAL);
+        }
+
+        // Move the ring content to the journal, so that it survives the process and bursts
+        private void spillFlows(boolean sync) {
+            FlowRing.Batch batch = new FlowRing.Batch(flowRing.size());
+            flowRing.drainTo(batch);
+            FlowJournal journal = FlowJournal.getInstance(ServiceSinkhole.this);
+            int written = journal.append(batch);
+            if (sync)
+                journal.sync();
+            Log.i(TAG, "Spilled " + written + "/" + batch.size + " flows, journal " + journal);
+        }
+    }
+
+    // Maintains the address rules off the command thread, lookups keep using the current rules meanwhile
+    private final class RuleHandler extends Handler {
+        public RuleHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            try {
+                switch (msg.what) {
+                    case MSG_RULES_REBUILD:
+                        rebuild();
+                        break;
+
+                    case MSG_RULES_UPDATE:
+                        update((String) msg.obj);
+                        break;
+
+                    case MSG_RULES_PRUNE:
+                        prune();
+                        break;
+
+                    case MSG_HOSTS_LOAD:
+                        loadHosts(msg.arg1);
+                        break;
+
+                    case MSG_RULES_RANGES:
+                        loadRanges();
+                        break;
+
+                    default:
+                        Log.e(TAG, "Unknown rule message=" + msg.what);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        private void rebuild() {
+            long start = SystemClock.elapsedRealtime();
+            IPFilters.Builder builder = ipFilters.rebuild();
+            List<IPFilters.Rule> rules = getUidIPFilters(null);
+            for (IPFilters.Rule rule : rules)
+                builder.add(rule);
+            boolean swapped = ipFilters.swap(builder);
+            Log.i(TAG, "Rebuilt IP filters rows=" + rules.size() + " swapped=" + swapped +
+                    " " + ipFilters + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            // Changes of the ranges meanwhile are loaded here too
+            removeMessages(MSG_RULES_RANGES);
+            loadRanges();
+        }
+
+        private void loadRanges() {
+            VpnConfig config = ServiceSinkhole.this.config;
+            if (config == null || !config.filter)
+                return;
+            long start = SystemClock.elapsedRealtime();
+            CidrTrie ranges = getUidRanges();
+            ipFilters.setRanges(ranges);
+            Log.i(TAG, "Loaded " + ranges + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+        private void update(String daddr) {
+            VpnConfig config = ServiceSinkhole.this.config;
+            if (config == null || !config.filter)
+                return;
+            List<IPFilters.Rule> rules = getUidIPFilters(daddr);
+            ipFilters.update(daddr, rules, true);
+            Log.i(TAG, "Updated IP filters " + daddr + " rules=" + rules.size() + " " + ipFilters);
+        }
+
+        private void prune() {
+            int pruned = ipFilters.prune(new Date().getTime());
+            Log.i(TAG, "Pruned " + pruned + " expired IP filters " + ipFilters);
+        }
+
+        private void loadHosts(int generation) throws IOException {
+            File hosts = new File(getFilesDir(), "hosts.txt");
+            File allow = new File(getFilesDir(), "hosts_allow.txt");
+
+            HostsBlocklist current = snapshot.getHosts();
+            if (current != null && current.isCurrent(hosts, allow)) {
+                Log.i(TAG, "Hosts file unchanged");
+                return;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            HostsBlocklist blocklist = HostsBlocklist.load(hosts, allow, "test.netguard.me");
+
+            // Not when the hosts were cleared or loaded again meanwhile
+            snapshotLock.lock();
+            try {
+                if (generation != hostsGeneration.get()) {
+                    Log.i(TAG, "Hosts load superseded");
+                    return;
+                }
+                snapshot = snapshot.withHosts(blocklist);
+            } finally {
+                snapshotLock.unlock();
+            }
+            Log.i(TAG, "Loaded hosts " + blocklist + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
     }
 
+    private final DatabaseHelper.RuleChangedListener ruleChangedListener = new DatabaseHelper.RuleChangedListener() {
+        @Override
+        public void onChanged(String daddr) {
+            RuleHandler handler = ruleHandler;
+            if (handler != null) {
+                Message msg = handler.obtainMessage();
+                msg.what = MSG_RULES_UPDATE;
+                msg.obj = daddr;
+                handler.sendMessage(msg);
+            }
+        }
+
+        @Override
+        public void onRangesChanged() {
+            RuleHandler handler = ruleHandler;
+            if (handler != null) {
+                handler.removeMessages(MSG_RULES_RANGES);
+                handler.sendEmptyMessage(MSG_RULES_RANGES);
+            }
+        }
+    };
+
     /*
     private final class StatsHandler extends Handler {
         private boolean stats = false;
@@ -1444,25 +1683,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         if (filter) {
             prepareUidAllowed(listAllowed, listRule);
             prepareHostsBlocked();
-            prepareUidIPFilters(null);
+            prepareUidIPFilters();
             prepareForwarding();
         } else {
-            lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapUidIPFilters.clear();
-            mapForward.clear();
-            lock.writeLock().unlock();
+            setUidRules(new HashMap<Integer, Boolean>(), new HashSet<Integer>());
+            setForwarding(new HashMap<Integer, Forward>());
+            clearHostsBlocked();
+            ipFilters.clear();
         }
 
         if (log_app)
             prepareNotify(listRule);
-        else {
-            lock.writeLock().lock();
-            mapNotify.clear();
-            lock.writeLock().unlock();
-        }
+        else
+            setNotify(new HashMap<Integer, Boolean>());
 
         if (log || log_app || filter || collect_flow) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
@@ -1484,7 +1717,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel");
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), snapshot.isForwarded(53), rcode);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1517,101 +1750,120 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             if (clear)
                 jni_clear(jni_context);
 
+            // Export what has been aggregated, cleared sessions will not report again
+            flushFlows(clear, true);
+            flushPending();
+
             Log.i(TAG, "Stopped tunnel thread");
         }
     }
 
+    private void flushFlows(boolean all, boolean spill) {
+        Message msg = logHandler.obtainMessage();
+        msg.what = MSG_FLOW_FLUSH;
+        msg.arg1 = (all ? 1 : 0);
+        msg.arg2 = (spill ? 1 : 0);
+        logHandler.sendMessage(msg);
+    }
+
+    // Write the log rows and the usage the log thread holds back
+    private void flushPending() {
+        logHandler.sendEmptyMessage(MSG_LOG_FLUSH);
+        logHandler.sendEmptyMessage(MSG_USAGE_FLUSH);
+    }
+
     private void unprepare() {
-        lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapUidIPFilters.clear();
-        mapForward.clear();
-        mapNotify.clear();
-        lock.writeLock().unlock();
+        snapshotLock.lock();
+        try {
+            hostsGeneration.incrementAndGet();
+            snapshot = RuleSnapshot.EMPTY;
+        } finally {
+            snapshotLock.unlock();
+        }
+        ipFilters.clear();
     }
 
     private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
-        lock.writeLock().lock();
-
-        mapUidAllowed.clear();
+        Map<Integer, Boolean> uidAllowed = new HashMap<>();
         for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
+            uidAllowed.put(rule.uid, true);
 
-        mapUidKnown.clear();
+        Set<Integer> uidKnown = new HashSet<>();
         for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
+            uidKnown.add(rule.uid);
+
+        setUidRules(uidAllowed, uidKnown);
+    }
+
+    // The rules are built before taking the snapshot lock, which is only held to replace the snapshot
+    private void setUidRules(Map<Integer, Boolean> uidAllowed, Set<Integer> uidKnown) {
+        snapshotLock.lock();
+        try {
+            snapshot = snapshot.withUids(uidAllowed, uidKnown);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void setForwarding(Map<Integer, Forward> forward) {
+        snapshotLock.lock();
+        try {
+            snapshot = snapshot.withForward(forward);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
 
-        lock.writeLock().unlock();
+    private void setNotify(Map<Integer, Boolean> notify) {
+        snapshotLock.lock();
+        try {
+            snapshot = snapshot.withNotify(notify);
+        } finally {
+            snapshotLock.unlock();
+        }
     }
 
+    // The hosts file is compiled into a memory mapped blocklist, names in hosts_allow.txt are never blocked
+    // Loaded in the background, the current blocklist stays in use until the new one is swapped in
     private void prepareHostsBlocked() {
         SharedPreferences prefs = ServiceSinkhole.this.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
         boolean use_hosts = prefs.getBoolean("filter", false) && prefs.getBoolean("use_hosts", false);
         File hosts = new File(getFilesDir(), "hosts.txt");
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
-            lock.writeLock().unlock();
-            return;
-        }
-
-        boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
-            Log.i(TAG, "Hosts file unchanged");
+            clearHostsBlocked();
             return;
         }
-        last_hosts_modified = hosts.lastModified();
 
-        lock.writeLock().lock();
-
-        mapHostsBlocked.clear();
+        Message msg = ruleHandler.obtainMessage();
+        msg.what = MSG_HOSTS_LOAD;
+        msg.arg1 = hostsGeneration.incrementAndGet();
+        ruleHandler.removeMessages(MSG_HOSTS_LOAD);
+        ruleHandler.sendMessage(msg);
+    }
 
-        int count = 0;
-        BufferedReader br = null;
+    // Also discards a running load
+    private void clearHostsBlocked() {
+        snapshotLock.lock();
         try {
-            br = new BufferedReader(new FileReader(hosts));
-            String line;
-            while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
-                line = line.trim();
-                if (line.length() > 0) {
-                    String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
-                        Log.i(TAG, "Invalid hosts file line: " + line);
-                }
-            }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
-        } catch (IOException ex) {
-            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            hostsGeneration.incrementAndGet();
+            snapshot = snapshot.withHosts(null);
         } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException exex) {
-                    Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
-                }
+            snapshotLock.unlock();
         }
+    }
 
-        lock.writeLock().unlock();
+    // Rebuilt in the background, the current rules stay in use until the new rules are swapped in
+    private void prepareUidIPFilters() {
+        ruleHandler.removeMessages(MSG_RULES_REBUILD);
+        ruleHandler.sendEmptyMessage(MSG_RULES_REBUILD);
     }
 
-    private void prepareUidIPFilters(String dname) {
+    // Rules of the access name or of all access rules for null
+    private List<IPFilters.Rule> getUidIPFilters(String dname) {
+        List<IPFilters.Rule> rules = new ArrayList<>();
         SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-
-        lock.writeLock().lock();
-
-        if (dname == null) {
-            mapUidIPFilters.clear();
-        }
+        boolean lockedDown = isLockedDown(last_metered);
 
         Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname);
         int colUid = cursor.getColumnIndex("uid");
@@ -1634,56 +1886,84 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
             long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
 
-            if (isLockedDown(last_metered)) {
-                String[] pkg = getPackageManager().getPackagesForUid(uid);
-                if (pkg != null && pkg.length > 0) {
+            if (lockedDown) {
+                String[] pkg = UidCache.get(uid, this).packages;
+                if (pkg.length > 0) {
                     if (!lockdown.getBoolean(pkg[0], false))
                         continue;
                 }
             }
 
-            IPKey key = new IPKey(version, protocol, dport, uid);
-            synchronized (mapUidIPFilters) {
-                if (!mapUidIPFilters.containsKey(key))
-                    mapUidIPFilters.put(key, new HashMap());
+            try {
+                String name = (dresource == null ? daddr : dresource);
+                if (Util.isNumericAddress(name)) {
+                    InetAddress iname = InetAddress.getByName(name);
+                    if (version == 4 && !(iname instanceof Inet4Address))
+                        continue;
+                    if (version == 6 && !(iname instanceof Inet6Address))
+                        continue;
 
-                try {
-                    String name = (dresource == null ? daddr : dresource);
-                    if (Util.isNumericAddress(name)) {
-                        InetAddress iname = InetAddress.getByName(name);
-                        if (version == 4 && !(iname instanceof Inet4Address))
-                            continue;
-                        if (version == 6 && !(iname instanceof Inet6Address))
-                            continue;
-
-                        //if (dname != null)
-                        Log.i(TAG, "Set filter " + key + " " + daddr + "/" + dresource + "=" + block);
-
-                        boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                        if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                            IPRule rule = new IPRule(key, name + "/" + iname, block, time + ttl);
-                            mapUidIPFilters.get(key).put(iname, rule);
-                            if (exists)
-                                Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                        } else if (exists) {
-                            mapUidIPFilters.get(key).get(iname).updateExpires(time + ttl);
-                            Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                        }
-                    } else
-                        Log.w(TAG, "Address not numeric " + name);
-                } catch (UnknownHostException ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    if (dname != null)
+                        Log.i(TAG, "Set filter uid=" + uid + " v" + version + " p" + protocol + " port=" + dport +
+                                " " + daddr + "/" + dresource + "=" + block);
+
+                    rules.add(new IPFilters.Rule(version, protocol, dport, uid,
+                            iname, daddr, name + "/" + iname, block, time + ttl));
+                } else
+                    Log.w(TAG, "Address not numeric " + name);
+            } catch (UnknownHostException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+        cursor.close();
+
+        return rules;
+    }
+
+    // Address ranges of the cidr table, subject to lockdown like the access rules
+    private CidrTrie getUidRanges() {
+        CidrTrie.Builder builder = new CidrTrie.Builder();
+        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
+        boolean lockedDown = isLockedDown(last_metered);
+
+        Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getCidr();
+        int colUid = cursor.getColumnIndex("uid");
+        int colProtocol = cursor.getColumnIndex("protocol");
+        int colDPort = cursor.getColumnIndex("dport");
+        int colAddress = cursor.getColumnIndex("address");
+        int colPrefix = cursor.getColumnIndex("prefix");
+        int colBlock = cursor.getColumnIndex("block");
+        while (cursor.moveToNext()) {
+            int uid = cursor.getInt(colUid);
+            String address = cursor.getString(colAddress);
+            int prefix = cursor.getInt(colPrefix);
+
+            if (lockedDown) {
+                String[] pkg = UidCache.get(uid, this).packages;
+                if (pkg.length > 0) {
+                    if (!lockdown.getBoolean(pkg[0], false))
+                        continue;
+                }
+            }
+
+            try {
+                if (!Util.isNumericAddress(address)) {
+                    Log.w(TAG, "Range not numeric " + address + "/" + prefix);
+                    continue;
                 }
+                builder.add(uid, cursor.getInt(colProtocol), cursor.getInt(colDPort),
+                        InetAddress.getByName(address), prefix, cursor.getInt(colBlock) > 0);
+            } catch (UnknownHostException | IllegalArgumentException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
         }
         cursor.close();
 
-        lock.writeLock().unlock();
+        return builder.build();
     }
 
     private void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForward.clear();
+        Map<Integer, Forward> forward = new HashMap<>();
 
         SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
         if (prefs.getBoolean("filter", false)) {
@@ -1700,12 +1980,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 fwd.raddr = cursor.getString(colRAddr);
                 fwd.rport = cursor.getInt(colRPort);
                 fwd.ruid = cursor.getInt(colRUid);
-                mapForward.put(fwd.dport, fwd);
+                forward.put(fwd.dport, fwd);
                 Log.i(TAG, "Forward " + fwd);
             }
             cursor.close();
         }
-        lock.writeLock().unlock();
+        setForwarding(forward);
     }
 
     private void prepareNotify(List<Rule> listRule) {
@@ -1713,11 +1993,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         boolean notify = prefs.getBoolean("notify_access", false);
         boolean system = prefs.getBoolean("manage_system", false);
 
-        lock.writeLock().lock();
-        mapNotify.clear();
+        Map<Integer, Boolean> uidNotify = new HashMap<>();
         for (Rule rule : listRule)
-            mapNotify.put(rule.uid, notify && rule.notify && (system || !rule.system));
-        lock.writeLock().unlock();
+            uidNotify.put(rule.uid, notify && rule.notify && (system || !rule.system));
+        setNotify(uidNotify);
     }
 
     private boolean isLockedDown(boolean metered) {
@@ -1856,16 +2135,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private void dnsResolved(ResourceRecord rr) {
         if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
             Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
+            // Addresses of a name are only added here, they are removed when they expire
+            if (config != null && config.filter)
+                ipFilters.update(rr.QName, getUidIPFilters(rr.QName), false);
         }
     }
 
     // Called from native code
     private boolean isDomainBlocked(String name) {
-        lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
-        lock.readLock().unlock();
-        return blocked;
+        return snapshot.isDomainBlocked(name);
     }
 
     private boolean isSupported(int protocol) {
@@ -1877,12 +2155,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
-        boolean whitelist = prefs.getBoolean("whitelist_filter", false);
-        lock.readLock().lock();
+        VpnConfig config = this.config;
+        RuleSnapshot snapshot = this.snapshot;
+        boolean whitelist = config.whitelistFilter;
 
         packet.allowed = false;
-        if (prefs.getBoolean("filter", false)) {
+        if (config.filter) {
             // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
             if (packet.uid < 2000 &&
                     !last_connected && isSupported(packet.protocol)) {
@@ -1891,7 +2169,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.w(TAG, "Allowing disconnected system " + packet);
 
             } else if (packet.uid < 2000 &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                    !snapshot.isKnown(packet.uid) && isSupported(packet.protocol)) {
                 // Allow unknown system traffic
                 packet.allowed = true;
                 Log.w(TAG, "Allowing unknown system " + packet);
@@ -1901,42 +2179,36 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.w(TAG, "Allowing self " + packet);
             } else {
                 boolean filtered = false;
-                IPKey key = new IPKey(packet.version, packet.protocol, packet.dport, packet.uid);
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet + " rule " + rule);
-                            else {
-                                filtered = true;
-                                if(whitelist){
-                                    packet.allowed = rule.isBlocked();
-                                }else {
-                                    packet.allowed = !rule.isBlocked();
-                                }
-                                Log.i(TAG, "Filtering " + packet +
-                                        " allowed=" + packet.allowed + " rule " + rule);
-                            }
+                IPFilters.Rule rule = ipFilters.get(packet.version, packet.protocol, packet.dport, packet.uid, packet.daddr);
+                if (rule != null) {
+                    if (rule.isExpired())
+                        Log.i(TAG, "DNS expired " + packet + " rule " + rule);
+                    else {
+                        filtered = true;
+                        if(whitelist){
+                            packet.allowed = rule.isBlocked();
+                        }else {
+                            packet.allowed = !rule.isBlocked();
                         }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        Log.i(TAG, "Filtering " + packet +
+                                " allowed=" + packet.allowed + " rule " + rule);
                     }
+                }
 
-                if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = !whitelist && mapUidAllowed.get(packet.uid);
+                if (!filtered) {
+                    Boolean uidAllowed = snapshot.isAllowed(packet.uid);
+                    if (uidAllowed != null)
+                        packet.allowed = !whitelist && uidAllowed;
                     else
                         Log.w(TAG, "No rules for " + packet);
+                }
             }
         }
 
         Allowed allowed = null;
         if (packet.allowed) {
-            if (mapForward.containsKey(packet.dport)) {
-                Forward fwd = mapForward.get(packet.dport);
+            Forward fwd = snapshot.getForward(packet.dport);
+            if (fwd != null) {
                 if (fwd.ruid == packet.uid) {
                     allowed = new Allowed();
                 } else {
@@ -1947,9 +2219,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 allowed = new Allowed();
         }
 
-        lock.readLock().unlock();
-
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false))
+        if (config.log || config.logApp)
             if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
                 if (packet.uid != Process.myUid())
                     logPacket(packet);
@@ -1965,11 +2235,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         logHandler.sendMessage(msg);
     }
 
-    // TODO
-    // Called from native code
-    private void captureFlow(Flow flow){
+    // Called from native code with a batch of packed flow records
+    private void captureFlows(ByteBuffer buffer, int count){
         Message msg = logHandler.obtainMessage();
-        msg.obj = flow;
+        msg.obj = new FlowRecords(buffer, count);
         msg.what = MSG_FLOW;
         logHandler.sendMessage(msg);
     }
@@ -2068,6 +2337,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
             Log.i(TAG, "device idle=" + pm.isDeviceIdleMode());
 
+            // Keep captured flows and logged packets when going into idle mode
+            if (pm.isDeviceIdleMode()) {
+                flushFlows(false, true);
+                flushPending();
+            }
+
             // Reload rules when coming from idle mode
             if (!pm.isDeviceIdleMode())
                 reload("idle state changed", ServiceSinkhole.this, false);
@@ -2214,6 +2489,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             Util.logExtras(intent);
 
             try {
+                invalidateUid(intent);
+
                 if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
                     // Application added
                     Rule.clearCache(context);
@@ -2251,6 +2528,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                             DatabaseHelper dh = DatabaseHelper.getInstance(context);
                             dh.clearLog(uid);
                             dh.clearAccess(uid, false);
+                            dh.clearCidr(uid);
 
                             NotificationManagerCompat.from(context).cancel(uid); // installed notification
                             NotificationManagerCompat.from(context).cancel(uid + 10000); // access notification
@@ -2265,6 +2543,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     };
 
+    private static void invalidateUid(Intent intent) {
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        if (uid < 0)
+            UidCache.clear();
+        else
+            UidCache.invalidate(uid);
+    }
+
     /*
     public void notifyNewApplication(int uid) {
         if (uid < 0)
@@ -2367,6 +2653,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         Log.i(TAG, "Create version=" + Util.getSelfVersionName(this) + "/" + Util.getSelfVersionCode(this));
 
         SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
+        config = VpnConfig.from(prefs);
 
         // Native init
         jni_context = jni_init(Build.VERSION.SDK_INT);
@@ -2381,16 +2668,21 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         HandlerThread commandThread = new HandlerThread(getString(R.string.app_name) + " command", Process.THREAD_PRIORITY_FOREGROUND);
         HandlerThread logThread = new HandlerThread(getString(R.string.app_name) + " log", Process.THREAD_PRIORITY_BACKGROUND);
         HandlerThread statsThread = new HandlerThread(getString(R.string.app_name) + " stats", Process.THREAD_PRIORITY_BACKGROUND);
+        HandlerThread ruleThread = new HandlerThread(getString(R.string.app_name) + " rules", Process.THREAD_PRIORITY_BACKGROUND);
         commandThread.start();
         logThread.start();
         statsThread.start();
+        ruleThread.start();
 
         commandLooper = commandThread.getLooper();
         logLooper = logThread.getLooper();
         statsLooper = statsThread.getLooper();
+        ruleLooper = ruleThread.getLooper();
 
         commandHandler = new CommandHandler(commandLooper);
         logHandler = new LogHandler(logLooper);
+        ruleHandler = new RuleHandler(ruleLooper);
+        DatabaseHelper.getInstance(this).addRuleChangedListener(ruleChangedListener);
         // statsHandler = new StatsHandler(statsLooper);
 
         // Listen for user switches
@@ -2460,11 +2752,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             @Override
             public void onAvailable(Network network) {
+                updateNetworkAddress("network available");
                 reload("network available", ServiceSinkhole.this, false);
             }
 
             @Override
             public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                updateNetworkAddress("link properties changed");
+
                 // Make sure the right DNS servers are being used
                 SharedPreferences prefs = ServiceSinkhole.this.getSharedPreferences("Vpn", Context.MODE_PRIVATE);
                 if (prefs.getBoolean("reload_onconnectivity", false) ||
@@ -2491,11 +2786,25 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             @Override
             public void onLost(Network network) {
+                updateNetworkAddress("network lost");
                 reload("network lost", ServiceSinkhole.this, false);
             }
         };
         cm.registerNetworkCallback(builder.build(), nc);
         networkCallback = nc;
+
+        updateNetworkAddress("listen");
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void updateNetworkAddress(String reason) {
+        try {
+            networkAddress = Networking.getActiveAddress(this);
+            Log.i(TAG, "Network address " + reason + " " + networkAddress);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            networkAddress = null;
+        }
     }
 
     private void listenConnectivityChanges() {
@@ -2517,6 +2826,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String name) {
+        // Publish a new snapshot for the packet path
+        config = VpnConfig.from(prefs);
+
         if ("theme".equals(name)) {
             Log.i(TAG, "Theme changed");
             // Util.setTheme(this);
@@ -2633,8 +2945,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         synchronized (this) {
             Log.i(TAG, "Destroy");
             commandLooper.quit();
-            logLooper.quit();
             statsLooper.quit();
+            DatabaseHelper.getInstance(this).removeRuleChangedListener(ruleChangedListener);
+            ruleLooper.quit();
 
             for (Command command : Command.values())
                 commandHandler.removeMessages(command.ordinal());
@@ -2694,6 +3007,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
+            // Only after the tunnel thread stopped, its last flows and log rows go to the log thread too
+            flushFlows(true, true);
+            flushPending();
+            logLooper.quitSafely();
+
             jni_done(jni_context);
 
             SharedPreferences prefs = getSharedPreferences("Vpn", Context.MODE_PRIVATE);
@@ -2786,7 +3104,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        HostsBlocklist blocklist = snapshot.getHosts();
+        Notification notification = getEnforcingNotification(allowed, total - allowed, blocklist == null ? 0 : blocklist.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.notify(NOTIFY_ENFORCING, notification);
     }
@@ -3102,79 +3421,6 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    private class IPKey {
-        int version;
-        int protocol;
-        int dport;
-        int uid;
-
-        public IPKey(int version, int protocol, int dport, int uid) {
-            this.version = version;
-            this.protocol = protocol;
-            // Only TCP (6) and UDP (17) have port numbers
-            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
-            this.uid = uid;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof IPKey))
-                return false;
-            IPKey other = (IPKey) obj;
-            return (this.version == other.version &&
-                    this.protocol == other.protocol &&
-                    this.dport == other.dport &&
-                    this.uid == other.uid);
-        }
-
-        @Override
-        public int hashCode() {
-            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
-        }
-
-        @Override
-        public String toString() {
-            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
-        }
-    }
-
-    private class IPRule {
-        private IPKey key;
-        private String name;
-        private boolean block;
-        private long expires;
-
-        public IPRule(IPKey key, String name, boolean block, long expires) {
-            this.key = key;
-            this.name = name;
-            this.block = block;
-            this.expires = expires;
-        }
-
-        public boolean isBlocked() {
-            return this.block;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > this.expires;
-        }
-
-        public void updateExpires(long expires) {
-            this.expires = Math.max(this.expires, expires);
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            IPRule other = (IPRule) obj;
-            return (this.block == other.block && this.expires == other.expires);
-        }
-
-        @Override
-        public String toString() {
-            return this.key + " " + this.name;
-        }
-    }
-
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -0,0 +1,101 @@
+package eu.faircode.netguard;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Package metadata per uid, so that the packet, flow and rule paths do not query the package manager
+// Entries are invalidated when a package with the uid is added, replaced or removed
+public class UidCache {
+    private static final String TAG = "NetGuard.UidCache";
+
+    private static final SparseArray<Entry> cache = new SparseArray<>();
+    private static long generation = 0;
+
+    public static class Entry {
+        public final int uid;
+        public final String[] packages; // empty when the uid has no packages
+        public final String packageName; // first package, null if unknown
+        public final List<String> labels; // sorted
+        public final boolean system;
+        public final boolean internet;
+
+        private Entry(int uid, String[] packages, String packageName, List<String> labels, boolean system, boolean internet) {
+            this.uid = uid;
+            this.packages = packages;
+            this.packageName = packageName;
+            this.labels = Collections.unmodifiableList(labels);
+            this.system = system;
+            this.internet = internet;
+        }
+    }
+
+    public static Entry get(int uid, Context context) {
+        long gen;
+        synchronized (cache) {
+            Entry entry = cache.get(uid);
+            if (entry != null)
+                return entry;
+            gen = generation;
+        }
+
+        // Query the package manager without holding the cache lock
+        Entry entry = load(uid, context);
+
+        synchronized (cache) {
+            // Do not store data which might have been invalidated meanwhile
+            if (gen == generation)
+                cache.put(uid, entry);
+        }
+        return entry;
+    }
+
+    public static void invalidate(int uid) {
+        Log.i(TAG, "Invalidate uid=" + uid);
+        synchronized (cache) {
+            cache.remove(uid);
+            generation++;
+        }
+    }
+
+    public static void clear() {
+        Log.i(TAG, "Clear");
+        synchronized (cache) {
+            cache.clear();
+            generation++;
+        }
+    }
+
+    private static Entry load(int uid, Context context) {
+        PackageManager pm = context.getPackageManager();
+        String[] pkgs = pm.getPackagesForUid(uid);
+        if (pkgs == null)
+            pkgs = new String[0];
+
+        String packageName = null;
+        List<String> labels = new ArrayList<>();
+        boolean system = false;
+        boolean internet = false;
+        for (int i = 0; i < pkgs.length; i++)
+            try {
+                ApplicationInfo info = pm.getApplicationInfo(pkgs[i], 0);
+                if (i == 0)
+                    packageName = info.packageName;
+                labels.add(pm.getApplicationLabel(info).toString());
+                if ((info.flags & (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0)
+                    system = true;
+                if (pm.checkPermission("android.permission.INTERNET", pkgs[i]) == PackageManager.PERMISSION_GRANTED)
+                    internet = true;
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        Collections.sort(labels);
+
+        return new Entry(uid, pkgs, packageName, labels, system, internet);
+    }
+}
@@ -0,0 +1,161 @@
+package eu.faircode.netguard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Sums traffic usage per access row in memory until it is written to the access table
+// Keys are spread over stripes with their own lock, so readers do not stall the log thread
+public class UsageAccumulator {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public UsageAccumulator() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public void add(Usage usage, String daddr) {
+        Key key = new Key(usage.Uid, usage.Version, usage.Protocol, daddr, usage.DPort);
+        Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                stripe.entries.put(key, entry);
+            }
+            entry.sent += usage.Sent;
+            entry.received += usage.Received;
+            entry.connections++;
+        }
+    }
+
+    // Takes the accumulated totals, new usage starts from zero
+    public List<Entry> drain() {
+        List<Entry> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            Map<Key, Entry> entries;
+            synchronized (stripe) {
+                if (stripe.entries.isEmpty())
+                    continue;
+                entries = stripe.entries;
+                stripe.entries = new HashMap<>();
+            }
+            result.addAll(entries.values());
+        }
+        return result;
+    }
+
+    // Unflushed totals of an uid, or of all uids for a negative uid
+    public Entry get(int uid) {
+        Entry total = new Entry(null);
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                for (Entry entry : stripe.entries.values())
+                    if (uid < 0 || entry.uid == uid) {
+                        total.sent += entry.sent;
+                        total.received += entry.received;
+                        total.connections += entry.connections;
+                    }
+            }
+        return total;
+    }
+
+    // Forget unflushed usage of an uid, or of all uids for a negative uid
+    public void clear(int uid) {
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                if (uid < 0)
+                    stripe.entries.clear();
+                else {
+                    Iterator<Key> it = stripe.entries.keySet().iterator();
+                    while (it.hasNext())
+                        if (it.next().uid == uid)
+                            it.remove();
+                }
+            }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return (size() == 0);
+    }
+
+    private static class Stripe {
+        Map<Key, Entry> entries = new HashMap<>();
+    }
+
+    public static class Entry {
+        public final int uid;
+        public final int version;
+        public final int protocol;
+        public final String daddr;
+        public final int dport;
+        public long sent = 0;
+        public long received = 0;
+        public int connections = 0;
+
+        Entry(Key key) {
+            this.uid = (key == null ? -1 : key.uid);
+            this.version = (key == null ? -1 : key.version);
+            this.protocol = (key == null ? -1 : key.protocol);
+            this.daddr = (key == null ? null : key.daddr);
+            this.dport = (key == null ? -1 : key.dport);
+        }
+
+        @Override
+        public String toString() {
+            return "uid " + uid + " v" + version + " p" + protocol + " " + daddr + "/" + dport +
+                    " out " + sent + " in " + received + " connections " + connections;
+        }
+    }
+
+    private static class Key {
+        final int uid;
+        final int version;
+        final int protocol;
+        final String daddr;
+        final int dport;
+
+        Key(int uid, int version, int protocol, String daddr, int dport) {
+            this.uid = uid;
+            this.version = version;
+            this.protocol = protocol;
+            this.daddr = daddr;
+            this.dport = dport;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return (this.uid == other.uid &&
+                    this.version == other.version &&
+                    this.protocol == other.protocol &&
+                    this.dport == other.dport &&
+                    (this.daddr == null ? other.daddr == null : this.daddr.equals(other.daddr)));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = uid;
+            h = 31 * h + version;
+            h = 31 * h + protocol;
+            h = 31 * h + dport;
+            h = 31 * h + (daddr == null ? 0 : daddr.hashCode());
+            return h;
+        }
+    }
+}
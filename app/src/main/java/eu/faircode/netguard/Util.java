@@ -319,13 +319,7 @@ public class Util {
     }
 
     public static boolean isSystem(int uid, Context context) {
-        PackageManager pm = context.getPackageManager();
-        String[] pkgs = pm.getPackagesForUid(uid);
-        if (pkgs != null)
-            for (String pkg : pkgs)
-                if (isSystem(pkg, context))
-                    return true;
-        return false;
+        return UidCache.get(uid, context).system;
     }
 
     public static boolean isSystem(String packageName, Context context) {
@@ -350,13 +344,7 @@ public class Util {
     }
 
     public static boolean hasInternet(int uid, Context context) {
-        PackageManager pm = context.getPackageManager();
-        String[] pkgs = pm.getPackagesForUid(uid);
-        if (pkgs != null)
-            for (String pkg : pkgs)
-                if (hasInternet(pkg, context))
-                    return true;
-        return false;
+        return UidCache.get(uid, context).internet;
     }
 
     public static boolean isEnabled(PackageInfo info, Context context) {
@@ -383,18 +371,11 @@ public class Util {
         else if (uid == 9999)
             listResult.add(context.getString(R.string.title_nobody));
         else {
-            PackageManager pm = context.getPackageManager();
-            String[] pkgs = pm.getPackagesForUid(uid);
-            if (pkgs == null)
+            UidCache.Entry entry = UidCache.get(uid, context);
+            if (entry.packages.length == 0)
                 listResult.add(Integer.toString(uid));
             else
-                for (String pkg : pkgs)
-                    try {
-                        ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
-                        listResult.add(pm.getApplicationLabel(info).toString());
-                    } catch (PackageManager.NameNotFoundException ignored) {
-                    }
-            Collections.sort(listResult);
+                listResult.addAll(entry.labels);
         }
         return listResult;
     }
@@ -0,0 +1,40 @@
+package eu.faircode.netguard;
+
+import android.content.SharedPreferences;
+
+// Immutable snapshot of the preferences read on the packet path
+// Rebuilt on every preference change and published through a volatile reference
+public final class VpnConfig {
+    public final boolean filter;
+    public final boolean whitelistFilter;
+    public final boolean log;
+    public final boolean logApp;
+    public final boolean trackUsage;
+    public final boolean collectFlow;
+    public final boolean anonymizeApp;
+
+    private VpnConfig(SharedPreferences prefs) {
+        filter = prefs.getBoolean("filter", false);
+        whitelistFilter = prefs.getBoolean("whitelist_filter", false);
+        log = prefs.getBoolean("log", false);
+        logApp = prefs.getBoolean("log_app", false);
+        trackUsage = prefs.getBoolean("track_usage", false);
+        collectFlow = prefs.getBoolean("collect_flow", false);
+        anonymizeApp = prefs.getBoolean("anonymizeApp", false);
+    }
+
+    public static VpnConfig from(SharedPreferences prefs) {
+        return new VpnConfig(prefs);
+    }
+
+    @Override
+    public String toString() {
+        return "filter=" + filter +
+                " whitelist_filter=" + whitelistFilter +
+                " log=" + log +
+                " log_app=" + logApp +
+                " track_usage=" + trackUsage +
+                " collect_flow=" + collectFlow +
+                " anonymizeApp=" + anonymizeApp;
+    }
+}
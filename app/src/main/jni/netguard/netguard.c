@@ -45,7 +45,6 @@ jclass clsPacket;
 jclass clsAllowed;
 jclass clsRR;
 jclass clsUsage;
-jclass clsFlow;
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     log_android(ANDROID_LOG_INFO, "JNI load");
@@ -72,10 +71,6 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     clsUsage = jniGlobalRef(env, jniFindClass(env, usage));
     ng_add_alloc(clsUsage, "clsUsage");
 
-    const char *flow = "eu/faircode/netguard/Flow";
-    clsFlow = jniGlobalRef(env, jniFindClass(env, flow));
-    ng_add_alloc(clsFlow, "clsFlow");
-
     // Raise file number limit to maximum
     struct rlimit rlim;
     if (getrlimit(RLIMIT_NOFILE, &rlim))
@@ -103,12 +98,10 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
         (*env)->DeleteGlobalRef(env, clsAllowed);
         (*env)->DeleteGlobalRef(env, clsRR);
         (*env)->DeleteGlobalRef(env, clsUsage);
-        (*env)->DeleteGlobalRef(env, clsFlow);
         ng_delete_alloc(clsPacket, __FILE__, __LINE__);
         ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
         ng_delete_alloc(clsRR, __FILE__, __LINE__);
         ng_delete_alloc(clsUsage, __FILE__, __LINE__);
-        ng_delete_alloc(clsFlow, __FILE__, __LINE__);
     }
 }
 
@@ -991,29 +984,43 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
 #endif
 }
 
-jmethodID midCaptureFlow = NULL;
-jmethodID midInitFlow = NULL;
-jfieldID fidFlowTime = NULL;
-jfieldID fidFlowDuration = NULL;
-jfieldID fidFlowProtocol = NULL;
-jfieldID fidFlowSAddr = NULL;
-jfieldID fidFlowSPort = NULL;
-jfieldID fidFlowDAddr = NULL;
-jfieldID fidFlowDPort = NULL;
-jfieldID fidFlowUid = NULL;
-jfieldID fidFlowTos = NULL;
-jfieldID fidFlowSent = NULL;
-jfieldID fidFlowReceived = NULL;
-jfieldID fidFlowSentPackets = NULL;
-jfieldID fidFlowReceivedPackets = NULL;
-jfieldID fidFlowTcpFlags = NULL;
-jfieldID fidFlowNewFlow = NULL;
-jfieldID fidFlowFinished = NULL;
+jmethodID midCaptureFlows = NULL;
 
 void capture_flow(const struct arguments *args, jint protocol, jlong start_time, jlong end_time,
                   const char *saddr, jint sport, const char *daddr, jint dport, jint uid, jint tos,
                   jlong sent, jlong received, jint sentpackets, jint receivedpackets,
                   jint tcp_flags, jboolean new_flow, jboolean finished) {
+    struct context *ctx = args->ctx;
+    if (ctx->flow_count >= FLOW_BATCH)
+        flush_flows(args);
+
+    // Fixed width record, see FlowRecords.java for the layout
+    uint8_t *record = ctx->flow_buffer + ctx->flow_count * FLOW_RECORD_SIZE;
+    memset(record, 0, FLOW_RECORD_SIZE);
+    *((jlong *) (record + 0)) = start_time;
+    *((jlong *) (record + 8)) = end_time;
+    *((jlong *) (record + 16)) = sent;
+    *((jlong *) (record + 24)) = received;
+    *((jint *) (record + 32)) = protocol;
+    *((jint *) (record + 36)) = uid;
+    *((jint *) (record + 40)) = sport;
+    *((jint *) (record + 44)) = dport;
+    *((jint *) (record + 48)) = tos;
+    *((jint *) (record + 52)) = sentpackets;
+    *((jint *) (record + 56)) = receivedpackets;
+    *((jint *) (record + 60)) = tcp_flags;
+    *((jint *) (record + 64)) = (new_flow ? 1 : 0) | (finished ? 2 : 0);
+    strncpy((char *) (record + 72), saddr, FLOW_ADDR_SIZE - 1);
+    strncpy((char *) (record + 72 + FLOW_ADDR_SIZE), daddr, FLOW_ADDR_SIZE - 1);
+
+    ctx->flow_count++;
+}
+
+void flush_flows(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+    if (ctx->flow_count == 0)
+        return;
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -1021,83 +1028,35 @@ void capture_flow(const struct arguments *args, jint protocol, jlong start_time,
 #endif
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+    ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Leu/faircode/netguard/Flow;)V";
-    if (midCaptureFlow == NULL)
-        midCaptureFlow = jniGetMethodID(args->env, clsService, "captureFlow", signature);
-
-    const char *flow = "eu/faircode/netguard/Flow";
-    if (midInitFlow == NULL)
-        midInitFlow = jniGetMethodID(args->env, clsFlow, "<init>", "()V");
+    const char *signature = "(Ljava/nio/ByteBuffer;I)V";
+    if (midCaptureFlows == NULL)
+        midCaptureFlows = jniGetMethodID(args->env, clsService, "captureFlows", signature);
 
-    jobject jflow = jniNewObject(args->env, clsFlow, midInitFlow, flow);
-    ng_add_alloc(jflow, "jflow");
+    jobject jbuffer = (*args->env)->NewDirectByteBuffer(
+            args->env, ctx->flow_buffer, ctx->flow_count * FLOW_RECORD_SIZE);
+    ng_add_alloc(jbuffer, "jbuffer");
 
-    if (fidFlowTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidFlowTime = jniGetFieldID(args->env, clsFlow, "Time", "J");
-        fidFlowDuration = jniGetFieldID(args->env, clsFlow, "Duration", "J");
-        fidFlowProtocol = jniGetFieldID(args->env, clsFlow, "Protocol", "I");
-        fidFlowSAddr = jniGetFieldID(args->env, clsFlow, "SAddr", string);
-        fidFlowSPort = jniGetFieldID(args->env, clsFlow, "SPort", "I");
-        fidFlowDAddr = jniGetFieldID(args->env, clsFlow, "DAddr", string);
-        fidFlowDPort = jniGetFieldID(args->env, clsFlow, "DPort", "I");
-        fidFlowUid = jniGetFieldID(args->env, clsFlow, "Uid", "I");
-        fidFlowTos = jniGetFieldID(args->env, clsFlow, "Tos", "I");
-        fidFlowSent = jniGetFieldID(args->env, clsFlow, "Sent", "J");
-        fidFlowReceived = jniGetFieldID(args->env, clsFlow, "Received", "J");
-        fidFlowSentPackets = jniGetFieldID(args->env, clsFlow, "SentPackets", "I");
-        fidFlowReceivedPackets = jniGetFieldID(args->env, clsFlow, "ReceivedPackets", "I");
-        fidFlowTcpFlags = jniGetFieldID(args->env, clsFlow, "TcpFlags", "I");
-        fidFlowNewFlow = jniGetFieldID(args->env, clsFlow, "NewFlow", "Z");
-        fidFlowFinished = jniGetFieldID(args->env, clsFlow, "Finished", "Z");
-    }
-
-
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-    jstring jsaddr = (*args->env)->NewStringUTF(args->env, saddr);
-    ng_add_alloc(jdaddr, "jdaddr");
-    ng_add_alloc(jsaddr, "jsaddr");
-
-    (*args->env)->SetLongField(args->env, jflow, fidFlowTime, start_time);
-    (*args->env)->SetLongField(args->env, jflow, fidFlowDuration, end_time - start_time);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jflow, fidFlowSAddr, jsaddr);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowSPort, sport);
-    (*args->env)->SetObjectField(args->env, jflow, fidFlowDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowDPort, dport);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowUid, uid);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowTos, tos);
-    (*args->env)->SetLongField(args->env, jflow, fidFlowSent, sent);
-    (*args->env)->SetLongField(args->env, jflow, fidFlowReceived, received);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowSentPackets, sentpackets);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowReceivedPackets, receivedpackets);
-    (*args->env)->SetIntField(args->env, jflow, fidFlowTcpFlags, tcp_flags);
-    (*args->env)->SetBooleanField(args->env, jflow, fidFlowNewFlow, new_flow);
-    (*args->env)->SetBooleanField(args->env, jflow, fidFlowFinished, finished);
-
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midCaptureFlow, jflow);
+    (*args->env)->CallVoidMethod(args->env, args->instance, midCaptureFlows, jbuffer, ctx->flow_count);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jsaddr);
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jflow);
+    (*args->env)->DeleteLocalRef(args->env, jbuffer);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jsaddr, __FILE__, __LINE__);
-    ng_delete_alloc(jsaddr, __FILE__, __LINE__);
-    ng_delete_alloc(jflow, __FILE__, __LINE__);
+    ng_delete_alloc(jbuffer, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
-
 #ifdef PROFILE_JNI
     gettimeofday(&end, NULL);
     mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
                 (end.tv_usec - start.tv_usec) / 1000.0;
     if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "capture_flow %f", mselapsed);
+        log_android(ANDROID_LOG_WARN, "flush_flows %d %f", ctx->flow_count, mselapsed);
 #endif
+
+    ctx->flow_count = 0;
 }
+
 struct alloc_record {
     const char *tag;
     time_t time;
@@ -77,12 +77,18 @@
 
 #define ACTIVE_FLOW_LIFETIME 60000 // milliseconds
 
+#define FLOW_BATCH 64 // records
+#define FLOW_ADDR_SIZE 48 // bytes
+#define FLOW_RECORD_SIZE (72 + 2 * FLOW_ADDR_SIZE) // bytes
+
 struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
     int sdk;
     struct ng_session *ng_session;
+    int flow_count;
+    uint8_t flow_buffer[FLOW_BATCH * FLOW_RECORD_SIZE] __attribute__((aligned(8)));
 };
 
 struct arguments {
@@ -570,6 +576,8 @@ void capture_flow(const struct arguments *args, jint protocol, jlong start_time,
                   const char *saddr, jint sport, const char *daddr, jint dport, jint uid, jint tos,
                   jlong sent, jlong received, jint sentpackets, jint receivedpackets,
                   jint tcp_flags, jboolean new_flow, jboolean finished);
+
+void flush_flows(const struct arguments *args);
 void write_pcap_hdr();
 
 void write_pcap_rec(const uint8_t *buffer, size_t len);
@@ -171,6 +171,9 @@ void *handle_events(void *a) {
             log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
         }
 
+        // Deliver flows captured by the session checks in one call
+        flush_flows(args);
+
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
                     isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
@@ -270,6 +273,9 @@ void *handle_events(void *a) {
         }
     }
 
+    // Deliver remaining flows
+    flush_flows(args);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
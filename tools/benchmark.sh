@@ -0,0 +1,11 @@
+#!/bin/sh
+# Runs a benchmark of tools/benchmark on a desktop JVM against the app sources
+# Usage: tools/benchmark.sh IPFiltersBenchmark [rules [destinations]]
+#        tools/benchmark.sh FlowCodecBenchmark [flows]
+# The classes only need android.jar to compile, they do not call into it
+set -e
+android_jar=${ANDROID_JAR:-$ANDROID_HOME/platforms/android-28/android.jar}
+out=./app/build/benchmark
+mkdir -p $out
+javac -nowarn -d $out -cp $android_jar -sourcepath ./app/src/main/java ./tools/benchmark/$1.java
+java -cp $out:$android_jar "$@"
@@ -0,0 +1,92 @@
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import es.ugr.mdsm.restDump.FlowCodec;
+import eu.faircode.netguard.Flow;
+import eu.faircode.netguard.FlowRing;
+
+// Size and encoding time of a flow batch as JSON, deflated JSON and FlowCodec, and a decode round trip
+// Synthetic flows of 5 apps to about 40 destinations per /16
+// Arguments: number of flows
+public class FlowCodecBenchmark {
+    private static final String MAC = "a0b1c2d3e4f5";
+    private static final int ROUNDS = 50;
+
+    private static final String[] PACKAGES = {
+            "com.whatsapp", "com.google.android.gms", "com.android.chrome",
+            "org.telegram.messenger", "com.spotify.music"};
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+
+        Random rnd = new Random(1);
+        FlowRing.Batch batch = new FlowRing.Batch(count);
+        long time = 1700000000000L;
+        for (int i = 0; i < count; i++) {
+            Flow flow = new Flow();
+            flow.PackageName = PACKAGES[rnd.nextInt(PACKAGES.length)];
+            time += rnd.nextInt(500);
+            flow.Time = time;
+            flow.Duration = rnd.nextInt(120000);
+            flow.Protocol = (rnd.nextBoolean() ? 6 : 17);
+            flow.SAddr = "192.168.1.34";
+            flow.SPort = 30000 + rnd.nextInt(30000);
+            flow.DAddr = "142.250." + rnd.nextInt(40) + "." + rnd.nextInt(255);
+            flow.DPort = (rnd.nextBoolean() ? 443 : 53);
+            flow.Sent = rnd.nextInt(100000);
+            flow.Received = rnd.nextInt(1000000);
+            flow.SentPackets = rnd.nextInt(500);
+            flow.ReceivedPackets = rnd.nextInt(900);
+            flow.TcpFlags = rnd.nextInt(64);
+            flow.Tos = 0;
+            flow.NewFlow = rnd.nextBoolean();
+            flow.Finished = rnd.nextBoolean();
+            flow.Network = 432902426637L;
+            batch.set(i, flow);
+        }
+        batch.size = count;
+
+        // The fields of the JSON upload
+        StringBuilder sb = new StringBuilder("{\"mac\":\"" + MAC + "\",\"flows\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(String.format(Locale.ROOT,
+                    "{\"packageName\":\"%s\",\"time\":%d,\"duration\":%d,\"protocol\":%d,\"saddr\":\"%s\",\"sport\":%d," +
+                            "\"daddr\":\"%s\",\"dport\":%d,\"sentBytes\":%d,\"receivedBytes\":%d,\"sentPackets\":%d," +
+                            "\"receivedPackets\":%d,\"tcpFlags\":%d,\"ToS\":%d,\"newFlow\":%b,\"finished\":%b,\"network\":%d}",
+                    batch.packageName[i], batch.time[i], batch.duration[i], batch.protocol[i], batch.saddr[i], batch.sport[i],
+                    batch.daddr[i], batch.dport[i], batch.sent[i], batch.received[i], batch.sentPackets[i],
+                    batch.receivedPackets[i], batch.tcpFlags[i], batch.tos[i], batch.isNewFlow(i), batch.isFinished(i),
+                    batch.network[i]));
+        }
+        sb.append("]}");
+        byte[] json = sb.toString().getBytes("UTF-8");
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(json);
+        deflater.finish();
+        byte[] buffer = new byte[json.length + 64];
+        int deflated = deflater.deflate(buffer);
+        deflater.end();
+
+        byte[] encoded = null;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            encoded = FlowCodec.encode(MAC, batch);
+        long elapsed = (System.nanoTime() - start) / ROUNDS;
+
+        String[] mac = new String[1];
+        FlowRing.Batch decoded = FlowCodec.decode(encoded, mac);
+        boolean restored = (decoded.size == count && MAC.equals(mac[0]));
+        for (int i = 0; i < count && restored; i++)
+            restored = decoded.toFlow(i).toString().equals(batch.toFlow(i).toString());
+
+        System.out.println("Flows " + count);
+        System.out.println("JSON " + json.length + " bytes");
+        System.out.println("Deflated JSON " + deflated + " bytes");
+        System.out.println("Binary " + encoded.length + " bytes, encoded in " + (elapsed / 1000) + " us");
+        System.out.println("Round trip " + (restored ? "restored every flow" : "FAILED"));
+    }
+}
@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.Random;
+
+import eu.faircode.netguard.IPFilters;
+
+// Verdict latency of IPFilters.get, including parsing the address text
+// 100k rules over 100 uids, 20% IPv6, half of the verdicts hit a rule and half miss on the port
+// Arguments: number of rules, number of distinct destinations queried (all rules by default)
+public class IPFiltersBenchmark {
+    private static final int VERDICTS = 1 << 20;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        int hot = (args.length > 1 ? Integer.parseInt(args[1]) : count);
+
+        Random rnd = new Random(1);
+        String[] addrs = new String[count];
+        int[] uids = new int[count];
+        int[] versions = new int[count];
+        IPFilters filters = new IPFilters();
+        IPFilters.Builder builder = filters.rebuild();
+        for (int i = 0; i < count; i++) {
+            uids[i] = 10000 + rnd.nextInt(100);
+            String text;
+            if (i % 5 == 0) {
+                versions[i] = 6;
+                text = String.format("2a00:1450:%x:%x::%x", rnd.nextInt(65536), rnd.nextInt(65536), rnd.nextInt(65536));
+            } else {
+                versions[i] = 4;
+                text = (rnd.nextInt(223) + 1) + "." + rnd.nextInt(256) + "." + rnd.nextInt(256) + "." + rnd.nextInt(256);
+            }
+            InetAddress address = InetAddress.getByName(text);
+            addrs[i] = address.getHostAddress();
+            builder.add(new IPFilters.Rule(versions[i], 6, 443, uids[i],
+                    address, "origin" + i, "name" + i, i % 2 == 0, Long.MAX_VALUE));
+        }
+        filters.swap(builder);
+        System.out.println("Loaded " + filters);
+
+        int[] query = new int[VERDICTS];
+        int[] port = new int[VERDICTS];
+        for (int i = 0; i < VERDICTS; i++) {
+            query[i] = rnd.nextInt(hot);
+            port[i] = (i % 2 == 0 ? 443 : 80);
+        }
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocated(mx);
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < VERDICTS; i++) {
+                int q = query[i];
+                if (filters.get(versions[q], 6, port[i], uids[q], addrs[q]) != null)
+                    hits++;
+            }
+            long elapsed = System.nanoTime() - start;
+            bytes = allocated(mx) - bytes;
+            System.out.printf("Round %d: %.0f ns/verdict, %.1f B/verdict, hits %d%n",
+                    round, elapsed / (double) VERDICTS, bytes / (double) VERDICTS, hits);
+        }
+    }
+
+    // Bytes allocated by this thread, zero where the JVM does not report them
+    private static long allocated(ThreadMXBean mx) {
+        if (mx instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}